@@ -0,0 +1,162 @@
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Index over the class hierarchy, built once the hierarchy is known to be a
+ * tree rooted at Object.
+ *
+ * Classes are numbered in pre-order (children visited in name order, so the
+ * numbering is the same on every run). A class is a subtype of another
+ * exactly when its number falls inside the other's subtree interval, which
+ * makes subtype tests two integer comparisons. Least common ancestors are
+ * found with depths and a binary-lifting table of 2^k-th ancestors.
+ */
+public class ClassHierarchy {
+	
+	protected final Environment.CoolClass[] byId;
+	protected final int[] last;
+	protected final int[] depth;
+	protected final int[][] up;
+	
+	public ClassHierarchy(final Environment env)
+			throws Environment.EnvironmentException {
+		final Environment.CoolClass root = env.getClass("Object");
+		final int n = env.classes.size();
+		
+		final HashMap<Environment.CoolClass, List<Environment.CoolClass>> children = new HashMap<Environment.CoolClass, List<Environment.CoolClass>>();
+		for (final Environment.CoolClass c : env.classes.values()) {
+			children.put(c, new ArrayList<Environment.CoolClass>());
+		}
+		for (final Environment.CoolClass c : env.classes.values()) {
+			if (c != root) {
+				children.get(c.parent).add(c);
+			}
+		}
+		final Comparator<Environment.CoolClass> byName = new Comparator<Environment.CoolClass>() {
+			public int compare(final Environment.CoolClass c1,
+					final Environment.CoolClass c2) {
+				return c1.name.compareTo(c2.name);
+			}
+		};
+		
+		byId = new Environment.CoolClass[n];
+		last = new int[n];
+		depth = new int[n];
+		int log = 1;
+		while ((1 << log) < n) {
+			log++;
+		}
+		up = new int[log][n];
+		
+		// Pre-order numbering; a parent is always numbered before its children
+		int next = 0;
+		final LinkedList<Environment.CoolClass> stack = new LinkedList<Environment.CoolClass>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			final Environment.CoolClass c = stack.pop();
+			final int id = next++;
+			c.classId = id;
+			byId[id] = c;
+			if (c == root) {
+				up[0][id] = id;
+				depth[id] = 0;
+			} else {
+				up[0][id] = c.parent.classId;
+				depth[id] = depth[c.parent.classId] + 1;
+			}
+			final List<Environment.CoolClass> kids = children.get(c);
+			Collections.sort(kids, byName);
+			for (int i = kids.size() - 1; i >= 0; --i) {
+				stack.push(kids.get(i));
+			}
+		}
+		if (next != n) {
+			throw new Environment.EnvironmentException(MessageFormat.format(
+					"Only {0} of {1} classes are reachable from Object.",
+					next, n));
+		}
+		
+		// Subtree sizes, accumulated bottom-up in reverse pre-order
+		final int[] size = new int[n];
+		for (int id = n - 1; id >= 0; --id) {
+			size[id] += 1;
+			last[id] = id + size[id] - 1;
+			if (id != 0) {
+				size[up[0][id]] += size[id];
+			}
+		}
+		
+		for (int k = 1; k < log; ++k) {
+			for (int id = 0; id < n; ++id) {
+				up[k][id] = up[k - 1][up[k - 1][id]];
+			}
+		}
+	}
+	
+	/**
+	 * True if sub is sup or inherits (directly or indirectly) from it.
+	 */
+	public boolean isSubtype(final Environment.CoolClass sub,
+			final Environment.CoolClass sup) {
+		return sub.classId >= sup.classId && sub.classId <= last[sup.classId];
+	}
+	
+	public Environment.CoolClass leastCommonAncestor(
+			final Environment.CoolClass c1, final Environment.CoolClass c2) {
+		if (isSubtype(c1, c2)) {
+			return c2;
+		}
+		if (isSubtype(c2, c1)) {
+			return c1;
+		}
+		int a = c1.classId;
+		int b = c2.classId;
+		if (depth[a] < depth[b]) {
+			final int tmp = a;
+			a = b;
+			b = tmp;
+		}
+		final int diff = depth[a] - depth[b];
+		for (int k = 0; k < up.length; ++k) {
+			if ((diff & (1 << k)) != 0) {
+				a = up[k][a];
+			}
+		}
+		for (int k = up.length - 1; k >= 0; --k) {
+			if (up[k][a] != up[k][b]) {
+				a = up[k][a];
+				b = up[k][b];
+			}
+		}
+		return byId[up[0][a]];
+	}
+	
+	/**
+	 * Number of inheritance steps between a class and Object.
+	 */
+	public int depth(final Environment.CoolClass c) {
+		return depth[c.classId];
+	}
+	
+	/**
+	 * The highest class ID in the subtree rooted at c; together with
+	 * c.classId this is the interval of IDs of c and all its subclasses.
+	 */
+	public int lastDescendant(final Environment.CoolClass c) {
+		return last[c.classId];
+	}
+	
+	public Environment.CoolClass byId(final int id) {
+		return byId[id];
+	}
+	
+	public int size() {
+		return byId.length;
+	}
+	
+}
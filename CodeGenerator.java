@@ -1,5 +1,10 @@
+import java.nio.charset.Charset;
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -45,6 +50,70 @@ public class CodeGenerator {
 		}
 	}
 	
+	// Field 0 of every class descriptor points to the parent's descriptor,
+	// fields 1 and 2 hold the class ID and the highest ID of its subclasses
+	// (see ClassHierarchy), 3 and 4 the class name and instance size, and
+	// vtable slot i is field METHOD_SLOT_BASE + i. The runtime library
+	// (runtime/cool_runtime.c) relies on this layout.
+	protected static final int CLASS_ID_FIELD = 1;
+	protected static final int CLASS_LAST_FIELD = 2;
+	protected static final int CLASS_NAME_FIELD = 3;
+	protected static final int CLASS_SIZE_FIELD = 4;
+	protected static final int METHOD_SLOT_BASE = 5;
+	
+	// Functions of the runtime library called by generated code
+	protected static final String RUNTIME_DECLARATIONS = "declare void @cool_runtime_init() nounwind\n"
+			+ "declare void @cool_fatal(i8*) noreturn nounwind\n"
+			+ "declare void @cool_abort(%__instance_Object*) noreturn nounwind\n"
+			+ "declare %__instance_String* @cool_type_name(%__instance_Object*) nounwind readonly\n"
+			+ "declare %__instance_Object* @cool_copy(%__instance_Object*) nounwind\n"
+			+ "declare %__instance_String* @cool_concat(%__instance_String*, %__instance_String*) nounwind\n"
+			+ "declare %__instance_String* @cool_substr(%__instance_String*, i32, i32) nounwind\n"
+			+ "declare void @cool_out_string(%__instance_String*) nounwind\n"
+			+ "declare void @cool_out_int(i32) nounwind\n"
+			+ "declare %__instance_String* @cool_in_string(%__class_String*) nounwind\n"
+			+ "declare i32 @cool_in_int() nounwind\n"
+			+ "declare void @cool_profile_init(i32, i8**, i32, [2 x i64]**, i32, i64**, i32, i8*) nounwind\n"
+			+ "declare void @cool_profile_enter(i32) nounwind\n"
+			+ "declare void @cool_profile_exit(i32) nounwind\n"
+			+ "declare void @cool_profile_alloc_init(i32, i8**, i32, i8*) nounwind\n"
+			+ "declare noalias i8* @cool_profile_alloc(i64, i32, i8*) nounwind\n";
+	
+	// Runtime errors in dispatch and case expressions
+	protected static final String DISPATCH_ON_VOID = "Dispatch to void.";
+	protected static final String CASE_ON_VOID = "Match on void in case statement.";
+	protected static final String CASE_NO_MATCH = "No match in case statement.";
+	
+	// Error of the stub in vtable slots whose methods were pruned
+	protected static final String UNREACHABLE_METHOD = "Call to a method found unreachable at compile time.";
+	
+	protected static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	// Ints in [INT_CACHE_MIN, INT_CACHE_MIN + INT_CACHE_SIZE) are boxed by
+	// pointing into a preallocated table instead of allocating
+	protected static final int INT_CACHE_MIN = -128;
+	protected static final int INT_CACHE_SIZE = 1152;
+	
+	// Everything but @main is internal to the module, and Cool code calls
+	// Cool code with the fast calling convention. Nothing in a Cool program
+	// unwinds, and every call that might pass a void receiver tests it
+	// first (see checkReceiver), so %this is never null
+	protected static final String LINKAGE = "internal";
+	protected static final String CALLING_CONV = "fastcc";
+	protected static final String FUNCTION_ATTRS = "nounwind";
+	protected static final String THIS_ATTRS = "nonnull";
+	
+	// Cool leaves Int overflow undefined, so arithmetic may assume none
+	protected static final String ARITH_FLAGS = "nsw";
+	
+	// Methods a profile shows were never called
+	protected static final String COLD_ATTRS = "cold noinline";
+	
+	// A call through the vtable is guarded and made direct for the class
+	// of at least this share of the receivers in at least this many calls
+	protected static final double GUARD_MIN_SHARE = 0.9;
+	protected static final long GUARD_MIN_CALLS = 100;
+	
 	protected final Environment.CoolClass OBJECT;
 	protected final Environment.CoolClass BOOL;
 	protected final Environment.CoolClass INT;
@@ -54,18 +123,64 @@ public class CodeGenerator {
 	protected int id;
 	protected int label;
 	
-	protected final Environment env;
+	// Label of the basic block currently being emitted
+	protected String block;
 	
-	protected final boolean debug;
+	protected final Environment env;
 	
 	protected StringBuilder output;
 	
-	public CodeGenerator(final Environment env)
-			throws Environment.EnvironmentException {
-		this(env, false);
-	}
+	protected EscapeAnalysis escapeAnalysis;
+	protected Reachability reachability;
+	
+	// Whether a vtable slot has been filled with @__unreachable_method
+	protected boolean trapUsed;
+	
+	// Allocas of the function being generated; emitted at the top of its
+	// entry block so that mem2reg can promote every local slot
+	protected StringBuilder prologue;
+	
+	// String literals, each emitted once as a constant String object
+	protected HashMap<String, Register> strings;
+	protected StringBuilder constants;
+	
+	// Type-based alias analysis: one scalar type per kind of object field
+	// (class pointer, vtable slot, box payload, and each attribute keyed by
+	// its declaring class), all siblings under a single root so that
+	// accesses to different kinds of field never alias
+	protected HashMap<String, String> tbaaTypes;
+	protected StringBuilder metadata;
+	protected int metadataNodes;
 	
-	public CodeGenerator(final Environment env, final boolean debug)
+	// Report file of a profiling build, or null. Each method gets a
+	// counter in the runtime, numbered in the order the methods are
+	// generated
+	protected String profileFile = null;
+	protected List<Environment.CoolMethod> profiled;
+	
+	// Conditions of if and while, and calls through the vtable, numbered
+	// in the order they are generated; a profiling build counts the
+	// outcomes and receiver classes of each, and a build using a profile
+	// looks them up by number
+	protected int branchSites;
+	protected int dispatchSites;
+	protected ProfileData profileData = null;
+	
+	// Report file of an allocation-profiling build, or null. Each heap
+	// allocation site gets a counter, named after the code it is in (the
+	// allocation context) and the class it creates
+	protected String allocationProfileFile = null;
+	protected List<String> allocationSites;
+	protected HashMap<String, Integer> allocationSiteNames;
+	protected String allocationContext;
+	
+	protected static final String TBAA_ROOT = "!0";
+	protected static final String INVARIANT = "!1";
+	protected static final String TBAA_CLASS = "class";
+	protected static final String TBAA_VTABLE = "vtable";
+	protected static final String TBAA_CLASS_ID = "class id";
+	
+	public CodeGenerator(final Environment env)
 			throws Environment.EnvironmentException {
 		this.env = env;
 		OBJECT = env.getClass("Object");
@@ -73,7 +188,33 @@ public class CodeGenerator {
 		INT = env.getClass("Int");
 		STRING = env.getClass("String");
 		IO = env.getClass("IO");
-		this.debug = debug;
+	}
+	
+	/**
+	 * Instrument every method with a call counter and timers, and have the
+	 * program write a report of them to the given file when it exits.
+	 */
+	public void setProfile(final String reportFile) {
+		profileFile = reportFile;
+	}
+	
+	/**
+	 * Optimize for the behavior recorded in a profile: branch weights on
+	 * conditions, hot functions first, guarded direct calls where one
+	 * receiver class dominates a call site, and uncalled methods marked
+	 * cold.
+	 */
+	public void setProfileData(final ProfileData data) {
+		profileData = data;
+	}
+	
+	/**
+	 * Count the objects and bytes allocated at each allocation site and for
+	 * each class, and have the program write them to the given file when it
+	 * exits, with a census of the objects still reachable by class.
+	 */
+	public void setAllocationProfile(final String reportFile) {
+		allocationProfileFile = reportFile;
 	}
 	
 	public String nextID() {
@@ -88,53 +229,87 @@ public class CodeGenerator {
 		return "Label" + label++;
 	}
 	
+	/**
+	 * Returns the LLVM module, or null, having reported why, if code
+	 * generation fails.
+	 */
 	public String generateCode() {
 		output = new StringBuilder();
+		constants = new StringBuilder();
+		strings = new HashMap<String, Register>();
+		tbaaTypes = new HashMap<String, String>();
+		metadata = new StringBuilder();
+		profiled = new ArrayList<Environment.CoolMethod>();
+		allocationSites = new ArrayList<String>();
+		allocationSiteNames = new HashMap<String, Integer>();
+		metadata.append(TBAA_ROOT).append(
+				" = metadata !{metadata !\"Cool TBAA\"}\n");
+		metadata.append(INVARIANT).append(" = metadata !{}\n");
+		metadataNodes = 2;
 		id = 0;
 		label = 0;
+		branchSites = 0;
+		dispatchSites = 0;
+		trapUsed = false;
 		try {
-			
-			output
-					.append("@str.format = private constant [3 x i8] c\"%s\\00\"\n");
-			output
-					.append("@str.format2 = private constant [3 x i8] c\"%d\\00\"\n");
-			
-			log("\n--> Generating class descriptors...");
+			findMonomorphicSlots();
+			reachability = new Reachability(env);
+			Trace.CODEGEN.info("--> Generating class descriptors...");
 			generateClassDescriptors();
-			log("\n--> Generating functions...");
+			escapeAnalysis = new EscapeAnalysis(env);
+			Trace.CODEGEN.info("--> Generating functions...");
+			generateBoxing();
 			generateFunctions();
-			log("\n--> Generating main function...");
+			generateInitializers();
+			Trace.CODEGEN.info("--> Generating main function...");
 			writeMainFunction();
+			if (trapUsed) {
+				generateUnreachableMethod();
+			}
+			if (profileFile != null) {
+				generateProfileInit();
+			}
+			if (allocationProfileFile != null) {
+				generateAllocationProfileInit();
+			}
+			output.append(constants);
 			
-			output.append("\ndeclare i32 @printf(i8* noalias, ...)\n");
-			output.append("declare noalias i8* @GC_malloc(i64)\n");
+			output.append("\ndeclare noalias i8* @GC_malloc(i64)\n");
 			output.append("declare void @GC_init()\n");
-			output.append("declare i32 @strcmp(i8*, i8*)\n\n");
+			output.append("declare i32 @memcmp(i8*, i8*, i64) nounwind readonly\n");
+			output.append("declare void @llvm.memcpy.p0i8.p0i8.i64(i8*, i8*, i64, i32, i1) nounwind\n");
+			output.append(RUNTIME_DECLARATIONS);
+			output.append("\n");
+			output.append(metadata);
 		} catch (final Exception ex) {
 			System.err.println("*** Code generation failed!");
 			ex.printStackTrace();
-			return "";
+			return null;
 		}
 		
 		return output.toString();
 	}
 	
-	protected void generateClassDescriptors() {
-		output.append("@emptychar = global i8 0\n");
-		for (final Environment.CoolClass c : env.classes.values()) {
+	/*
+	 * Types for every class, but descriptors only for live ones (see
+	 * Reachability), and prototype objects only for instantiated ones. A
+	 * vtable slot whose method is unreachable points to a stub that reports
+	 * the error, in case the analysis was wrong.
+	 */
+	protected void generateClassDescriptors() throws CodeGenerationException,
+			Environment.EnvironmentException {
+		output.append("@emptychar = ").append(LINKAGE).append(" global i8 0\n");
+		for (int id = 0; id < env.hierarchy.size(); ++id) {
+			final Environment.CoolClass c = env.hierarchy.byId(id);
 			final StringBuilder b = new StringBuilder();
 			b.append(c.getInternalClassName());
 			b.append(" = type { ");
 			b.append(c.parent.getInternalClassName());
-			b.append("*");
-			int index = 1;
-			for (final Environment.CoolMethod m : c.methods.values()) {
-				if (m.parent.builtin && m.builtinImplementation == null) {
-					continue;
-				}
-				m.index = index++;
+			b.append("*, i32, i32, ").append(
+					STRING.getInternalInstanceName()).append("*, i64");
+			for (final Environment.CoolMethod m : c.methodTable) {
 				b.append(", ");
-				b.append(m.getInternalType());
+				b.append(m.getInternalSlotType());
 			}
 			b.append(" }\n");
 			
@@ -151,63 +326,296 @@ public class CodeGenerator {
 				b.append(", i1");
 			}
 			
-			for (final Environment.CoolAttribute a : c.attrList) {
-				b.append(", ");
-				b.append(a.type.getInternalInstanceName());
-				b.append("*");
+			final String[] fields = new String[c.attrTable.length];
+			for (final Environment.CoolAttribute a : c.attrTable) {
+				fields[a.index - 1] = a.type.getInternalValueType();
+			}
+			for (final String field : fields) {
+				b.append(", ").append(field);
 			}
 			b.append(" }\n");
 			
-			// @_Classname = global %__class_Classname { %__class_Parentclass
-			// @Parentclass, <method pointers...> }
+			if (!reachability.isLive(c)) {
+				output.append(b);
+				continue;
+			}
+			
+			// @_Classname = constant %__class_Classname { %__class_Parentclass
+			// @Parentclass, i32 id, i32 last, %__instance_String* name,
+			// i64 size, <method pointers...> }
 			b.append(c.getInternalDescriptorName());
-			b.append(" = global ");
+			b.append(" = ").append(LINKAGE).append(" constant ");
 			b.append(c.getInternalClassName());
 			b.append(" {");
 			b.append(c.parent.getInternalClassName());
 			b.append("* ");
 			b.append(c.parent.getInternalDescriptorName());
-			for (final Environment.CoolMethod m : c.methods.values()) {
-				if (m.parent.builtin && m.builtinImplementation == null) {
-					continue;
-				}
+			b.append(", i32 ").append(c.classId);
+			b.append(", i32 ").append(env.hierarchy.lastDescendant(c));
+			b.append(", ").append(stringConstant(c.name).typeAndName());
+			b.append(", i64 ptrtoint (").append(c.getInternalInstanceName())
+					.append("* getelementptr (").append(
+							c.getInternalInstanceName()).append(
+							"* null, i32 1) to i64)");
+			for (final Environment.CoolMethod m : c.methodTable) {
+				final String slotType = m.getInternalSlotType();
 				b.append(", ");
-				b.append(m.getInternalType());
+				b.append(slotType);
 				b.append(" ");
-				b.append(m.getInternalName());
+				if (!m.hasImplementation()) {
+					b.append("null");
+				} else if (!reachability.isReachable(m)) {
+					b.append("bitcast (void ()* @__unreachable_method to ")
+							.append(slotType).append(")");
+					trapUsed = true;
+				} else if (slotType.equals(m.getInternalType())) {
+					b.append(m.getInternalName());
+				} else {
+					b.append("bitcast (").append(m.getInternalType()).append(
+							" ").append(m.getInternalName()).append(" to ")
+							.append(slotType).append(")");
+				}
 			}
 			b.append(" }\n");
 			
 			output.append(b);
+			if (reachability.isInstantiated(c) && c != INT && c != BOOL
+					&& c != STRING) {
+				generatePrototype(c);
+			}
 		}
 		output.append("\n");
 	}
 	
+	/*
+	 * The prototype of a class is a constant instance that new copies: the
+	 * class pointer, then each attribute's default value, or its initial
+	 * value if that is a constant and no initializer that runs before it
+	 * needs code (see firstInitializer).
+	 */
+	private void generatePrototype(final Environment.CoolClass c)
+			throws CodeGenerationException, Environment.EnvironmentException {
+		final int first = firstInitializer(c);
+		final String[] fields = new String[c.attrTable.length];
+		for (int i = 0; i < c.attrTable.length; ++i) {
+			final Environment.CoolAttribute a = c.attrTable[i];
+			final Register value = i < first ? constantInitializer(a)
+					: defaultValue(a.type);
+			fields[a.index - 1] = value.typeAndName();
+		}
+		output.append(prototype(c).name).append(
+				" = private unnamed_addr constant ").append(
+				c.getInternalInstanceName()).append(" { ").append(
+				c.getInternalClassName()).append("* ").append(
+				c.getInternalDescriptorName());
+		for (final String field : fields) {
+			output.append(", ").append(field);
+		}
+		output.append(" }\n");
+	}
+	
+	private Register prototype(final Environment.CoolClass c) {
+		return new Register("@__prototype_" + c.name, c
+				.getInternalInstanceName()
+				+ "*");
+	}
+	
+	/*
+	 * The value of an attribute's initializer if it needs no code: the
+	 * default value, a literal, or new Int, Bool or String, of the
+	 * attribute's own type. Null otherwise.
+	 */
+	private Register constantInitializer(final Environment.CoolAttribute a)
+			throws CodeGenerationException, Environment.EnvironmentException {
+		final ASTnode init = a.node.right;
+		if (init == null) {
+			return defaultValue(a.type);
+		}
+		if (init.type != a.type) {
+			return null;
+		}
+		switch (init.kind) {
+		case sym.TRUE:
+			return new Register("1", "i1");
+		case sym.FALSE:
+			return new Register("0", "i1");
+		case sym.INTLIT:
+			return new Register("" + Integer.parseInt((String) init.value),
+					"i32");
+		case sym.STRINGLIT:
+			return stringConstant((String) init.value);
+		case sym.NEW:
+			if (a.type == INT || a.type == BOOL || a.type == STRING) {
+				return defaultValue(a.type);
+			}
+			return null;
+		default:
+			return null;
+		}
+	}
+	
+	/*
+	 * Index in attrTable of the first attribute whose initializer needs
+	 * code. Initializers run in attrTable order, so from there on even
+	 * constant ones are left to @__init_Class, where the code before them
+	 * cannot see them early.
+	 */
+	private int firstInitializer(final Environment.CoolClass c)
+			throws CodeGenerationException, Environment.EnvironmentException {
+		for (int i = 0; i < c.attrTable.length; ++i) {
+			if (constantInitializer(c.attrTable[i]) == null) {
+				return i;
+			}
+		}
+		return c.attrTable.length;
+	}
+	
+	private boolean needsInitializer(final Environment.CoolClass c)
+			throws CodeGenerationException, Environment.EnvironmentException {
+		return firstInitializer(c) < c.attrTable.length;
+	}
+	
+	private String initializerName(final Environment.CoolClass c) {
+		return "@__init_" + c.name;
+	}
+	
+	/*
+	 * @__init_Class runs the initializers left out of the prototype on an
+	 * instance that is already a copy of it. When some of them belong to the
+	 * parent, it calls the parent's first, which share the same prototype
+	 * prefix; its own initializers are then generated in the context of the
+	 * class that declares them.
+	 */
+	private void generateInitializers() throws CodeGenerationException,
+			Environment.EnvironmentException {
+		for (int id = 0; id < env.hierarchy.size(); ++id) {
+			final Environment.CoolClass c = env.hierarchy.byId(id);
+			if (!reachability.isLive(c) || !needsInitializer(c)) {
+				continue;
+			}
+			output.append("define ").append(LINKAGE).append(" ").append(
+					CALLING_CONV).append(" void ").append(initializerName(c))
+					.append("(").append(c.getInternalInstanceName()).append(
+							" * ").append(THIS_ATTRS).append(" %this) ")
+					.append(FUNCTION_ATTRS).append(" {\n");
+			final StringBuilder enclosing = beginFunctionBody();
+			final Register thiz = new Register("%this", c
+					.getInternalInstanceName()
+					+ "*");
+			int start = firstInitializer(c);
+			if (start < c.parent.attrTable.length) {
+				callInitializer(c.parent, thiz);
+				start = c.parent.attrTable.length;
+			}
+			for (int i = start; i < c.attrTable.length; ++i) {
+				final Environment.CoolAttribute a = c.attrTable[i];
+				if (a.node.right != null) {
+					output.append("\t; Initialize ").append(a).append(
+							" to introduced value\n");
+					allocationContext = c.name + "." + a.name;
+					final Register attrPtr = getElementPtr(thiz, a.type
+							.getInternalValueType()
+							+ "*", 0, a.index);
+					final Register v = generate(c, thiz, a.node.right);
+					store(coerce(v, attrPtr.derefType()), attrPtr, tbaa(a));
+				}
+			}
+			output.append("\tret void\n");
+			endFunctionBody(enclosing);
+			output.append("}\n\n");
+		}
+	}
+	
+	private void callInitializer(final Environment.CoolClass c,
+			final Register instance) {
+		final Register thiz = bitcastIfNeeded(instance, c
+				.getInternalInstanceName()
+				+ "*");
+		output.append("\tcall ").append(CALLING_CONV).append(" void ").append(
+				initializerName(c)).append("(").append(thiz.typeAndName())
+				.append(")\n");
+	}
+	
+	/*
+	 * Class hierarchy analysis: a slot is monomorphic for a class if that
+	 * class and all of its subclasses share one implementation. Classes
+	 * are merged into their parents in reverse pre-order, so each class
+	 * has absorbed its whole subtree before it is merged.
+	 */
+	protected void findMonomorphicSlots() {
+		for (int id = 0; id < env.hierarchy.size(); ++id) {
+			final Environment.CoolClass c = env.hierarchy.byId(id);
+			c.monomorphic = c.methodTable.clone();
+		}
+		for (int id = env.hierarchy.size() - 1; id > 0; --id) {
+			final Environment.CoolClass c = env.hierarchy.byId(id);
+			final Environment.CoolMethod[] parentSlots = c.parent.monomorphic;
+			for (int s = 0; s < parentSlots.length; ++s) {
+				if (c.monomorphic[s] != parentSlots[s]) {
+					parentSlots[s] = null;
+				}
+			}
+		}
+		if (Trace.CODEGEN.on(Trace.Level.DEBUG)) {
+			for (int id = 0; id < env.hierarchy.size(); ++id) {
+				final Environment.CoolClass c = env.hierarchy.byId(id);
+				for (int s = 0; s < c.monomorphic.length; ++s) {
+					Trace.CODEGEN.debug("{0} slot {1} ({2}): {3}", c, s,
+							c.methodTable[s].name,
+							c.monomorphic[s] == null ? "polymorphic"
+									: "monomorphic");
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Functions are generated in class order, which fixes the numbering of
+	 * profiling sites, and then written out most called first when there
+	 * is a profile, so that hot code is packed together.
+	 */
 	protected void generateFunctions() throws CodeGenerationException,
 			Environment.EnvironmentException {
-		
-		for (final Environment.CoolClass c : env.classes.values()) {
+		final List<Environment.CoolMethod> methods = new ArrayList<Environment.CoolMethod>();
+		final HashMap<Environment.CoolMethod, StringBuilder> functions = new HashMap<Environment.CoolMethod, StringBuilder>();
+		final StringBuilder module = output;
+		for (int id = 0; id < env.hierarchy.size(); ++id) {
+			final Environment.CoolClass c = env.hierarchy.byId(id);
 			for (final Environment.CoolMethod m : c.methods.values()) {
-				if (m.parent.builtin && m.builtinImplementation == null) {
+				if (!m.hasImplementation() || !reachability.isReachable(m)) {
 					continue;
 				}
-				output.append("define ");
-				output.append(m.type.getInternalInstanceName());
-				output.append(" * ");
+				output = new StringBuilder();
+				methods.add(m);
+				functions.put(m, output);
+				output.append("define ").append(LINKAGE).append(" ").append(
+						CALLING_CONV).append(" ");
+				output.append(m.type.getInternalValueType());
+				output.append(" ");
 				output.append(m.getInternalName());
 				output.append("(").append(m.parent.getInternalInstanceName())
-						.append(" * %this");
+						.append(" * ").append(THIS_ATTRS).append(" %this");
 				int index = 1;
 				for (final Environment.CoolAttribute a : m.arguments) {
 					a.index = index++;
 					output.append(", ");
-					output.append(a.type.getInternalInstanceName());
-					output.append(" * %v");
+					output.append(a.type.getInternalValueType());
+					output.append(" %v");
 					output.append(a.index);
 				}
-				output.append(") {\n");
+				output.append(") ").append(FUNCTION_ATTRS);
+				if (profileData != null && profileData.calls(m) == 0) {
+					output.append(" ").append(COLD_ATTRS);
+				}
+				output.append(" {\n");
 				if (m.builtinImplementation != null) {
-					output.append(m.builtinImplementation);
+					if (profileFile != null) {
+						final int counter = profileEnter(m);
+						output.append(m.builtinImplementation.replace("\tret ",
+								profileExitCall(counter) + "\tret "));
+					} else {
+						output.append(m.builtinImplementation);
+					}
 				} else {
 					final Register r = new Register("%this", m.parent
 							.getInternalInstanceName()
@@ -217,7 +625,20 @@ public class CodeGenerator {
 				output.append("\n}\n\n");
 			}
 		}
+		output = module;
 		
+		if (profileData != null) {
+			Collections.sort(methods, new Comparator<Environment.CoolMethod>() {
+				public int compare(final Environment.CoolMethod m1,
+						final Environment.CoolMethod m2) {
+					return Long.signum(profileData.calls(m2)
+							- profileData.calls(m1));
+				}
+			});
+		}
+		for (final Environment.CoolMethod m : methods) {
+			output.append(functions.get(m));
+		}
 	}
 	
 	protected void generateFunctionBody(final Environment.CoolClass cls,
@@ -231,14 +652,227 @@ public class CodeGenerator {
 										"Methods must start with a METHOD node, but found {0} instead.",
 										Util.idToName(m.node.kind)));
 			}
-			log(MessageFormat.format("Generating function body for {0} of {1}",
-					m, cls));
-			Register body = generate(cls, thiz, m.node.right);
-			if (!body.type.equals(m.type.getInternalInstanceName() + "*")) {
-				body = bitcast(body, m.type.getInternalInstanceName() + "*");
+			Trace.CODEGEN.debug("Generating function body for {0} of {1}", m,
+					cls);
+			final StringBuilder enclosing = beginFunctionBody();
+			allocationContext = cls.name + "." + m.name;
+			final int counter = profileFile != null ? profileEnter(m) : -1;
+			env.registers.enterScope();
+			for (final Environment.CoolAttribute a : m.arguments) {
+				final Register slot = nextRegister(a.type.getInternalValueType()
+						+ "*");
+				alloca(slot);
+				store(new Register("%v" + a.index, a.type
+						.getInternalValueType()), slot);
+				env.registers.bind(a.name, slot);
+			}
+			final Register body = coerce(generate(cls, thiz, m.node.right),
+					m.type.getInternalValueType());
+			env.registers.exitScope();
+			if (counter >= 0) {
+				output.append(profileExitCall(counter));
 			}
 			output.append("\tret ").append(body.typeAndName()).append("\n");
+			endFunctionBody(enclosing);
+		}
+	}
+	
+	/*
+	 * Start the counter and timers of a method on entry to its function;
+	 * returns the counter's number. The runtime keeps a stack of active
+	 * calls, so that time spent in callees can be excluded from the
+	 * caller's own time.
+	 */
+	private int profileEnter(final Environment.CoolMethod m) {
+		final int counter = profiled.size();
+		profiled.add(m);
+		output.append("\tcall void @cool_profile_enter(i32 ").append(counter)
+				.append(")\n");
+		return counter;
+	}
+	
+	private String profileExitCall(final int counter) {
+		return "\tcall void @cool_profile_exit(i32 " + counter + ")\n";
+	}
+	
+	/*
+	 * The tables of Class.method names and of branch and dispatch site
+	 * counters that the profiling runtime reports, known once every
+	 * function has been generated, and the function main calls to register
+	 * them with the report file to write at exit.
+	 */
+	private void generateProfileInit() {
+		final String nameTable = "[" + profiled.size() + " x i8*]";
+		final StringBuilder names = new StringBuilder();
+		for (final Environment.CoolMethod m : profiled) {
+			final String name = m.parent.name + "." + m.name;
+			names.append(names.length() == 0 ? " " : ", ").append(
+					stringChars(stringConstant(name),
+							name.getBytes(UTF8).length).typeAndName());
+		}
+		constants.append("@__profile_names = ").append(LINKAGE).append(
+				" constant ").append(nameTable).append(" [").append(names)
+				.append(" ]\n");
+		final String branchTable = counterTable("@__profile_branches",
+				"@__profile_branch_", "[2 x i64]", "[2 x i64]*", branchSites);
+		final String receiverTable = counterTable("@__profile_receivers",
+				"@__profile_receiver_", "[" + env.hierarchy.size() + " x i64]",
+				"i64*", dispatchSites);
+		final Register file = stringChars(stringConstant(profileFile),
+				profileFile.getBytes(UTF8).length);
+		output.append("define ").append(LINKAGE).append(
+				" void @__init_profile() ").append(FUNCTION_ATTRS).append(
+				" {\n");
+		output.append("\tcall void @cool_profile_init(i32 ").append(
+				profiled.size()).append(", i8** getelementptr inbounds (")
+				.append(nameTable).append("* @__profile_names, i32 0, i32 0), i32 ")
+				.append(branchSites).append(", ").append(branchTable).append(
+						", i32 ").append(dispatchSites).append(", ").append(
+						receiverTable).append(", i32 ").append(
+						env.hierarchy.size()).append(", ").append(
+						file.typeAndName()).append(")\n");
+		output.append("\tret void\n}\n\n");
+	}
+	
+	/*
+	 * A constant table of pointers to the counters of one kind of site,
+	 * the arrays of counterType named prefix + site, or to their first
+	 * elements if type is a pointer to an element; returns a pointer to
+	 * the table's first entry.
+	 */
+	private String counterTable(final String table, final String prefix,
+			final String counterType, final String type, final int count) {
+		final String tableType = "[" + count + " x " + type + "]";
+		constants.append(table).append(" = ").append(LINKAGE).append(
+				" constant ").append(tableType).append(" [");
+		for (int site = 0; site < count; ++site) {
+			constants.append(site == 0 ? " " : ", ").append(type).append(" ");
+			if (type.equals(counterType + "*")) {
+				constants.append(prefix).append(site);
+			} else {
+				constants.append("getelementptr inbounds (").append(
+						counterType).append("* ").append(prefix).append(site)
+						.append(", i32 0, i32 0)");
+			}
+		}
+		constants.append(" ]\n");
+		return type + "* getelementptr inbounds (" + tableType + "* "
+				+ table + ", i32 0, i32 0)";
+	}
+	
+	/*
+	 * Number the next branch site, with its pair of counters (condition
+	 * true, condition false) in a profiling build.
+	 */
+	private int branchSite() {
+		final int site = branchSites++;
+		if (profileFile != null) {
+			constants.append("@__profile_branch_").append(site).append(" = ")
+					.append(LINKAGE).append(" global [2 x i64] zeroinitializer\n");
 		}
+		return site;
+	}
+	
+	/*
+	 * Number the next dispatch site, with a counter per receiver class in
+	 * a profiling build.
+	 */
+	private int dispatchSite() {
+		final int site = dispatchSites++;
+		if (profileFile != null) {
+			constants.append("@__profile_receiver_").append(site).append(
+					" = ").append(LINKAGE).append(" global [").append(
+					env.hierarchy.size()).append(" x i64] zeroinitializer\n");
+		}
+		return site;
+	}
+	
+	/*
+	 * In a profiling build, count an outcome of a branch site: 0 where the
+	 * condition was true, 1 where it was false.
+	 */
+	private void countBranch(final int site, final int outcome)
+			throws CodeGenerationException {
+		if (profileFile != null) {
+			increment(getElementPtr(new Register("@__profile_branch_" + site,
+					"[2 x i64]*"), "i64*", 0, outcome));
+		}
+	}
+	
+	private void increment(final Register counter)
+			throws CodeGenerationException {
+		final Register count = load(counter);
+		final Register next = nextRegister("i64");
+		output.append("\t").append(next.name).append(" = add ").append(
+				count.typeAndName()).append(", 1\n");
+		store(next, counter);
+	}
+	
+	/*
+	 * Branch weight metadata for a pair of counts, scaled to fit in i32;
+	 * one is added to each so that neither side is taken to be impossible.
+	 */
+	private String branchWeights(final long[] counts) {
+		long taken = counts[0];
+		long notTaken = counts[1];
+		while (taken >= Integer.MAX_VALUE || notTaken >= Integer.MAX_VALUE) {
+			taken >>= 1;
+			notTaken >>= 1;
+		}
+		final String node = "!" + metadataNodes++;
+		metadata.append(node).append(
+				" = metadata !{metadata !\"branch_weights\", i32 ").append(
+				taken + 1).append(", i32 ").append(notTaken + 1).append("}\n");
+		return node;
+	}
+	
+	/*
+	 * The names of the allocation sites, known once every function has
+	 * been generated, and the function main calls to register them with
+	 * the runtime.
+	 */
+	private void generateAllocationProfileInit() {
+		final String table = "[" + allocationSites.size() + " x i8*]";
+		final StringBuilder names = new StringBuilder();
+		for (final String site : allocationSites) {
+			names.append(names.length() == 0 ? " " : ", ").append(
+					stringChars(stringConstant(site),
+							site.getBytes(UTF8).length).typeAndName());
+		}
+		constants.append("@__allocation_sites = ").append(LINKAGE).append(
+				" constant ").append(table).append(" [").append(names)
+				.append(" ]\n");
+		final Register file = stringChars(
+				stringConstant(allocationProfileFile), allocationProfileFile
+						.getBytes(UTF8).length);
+		output.append("define ").append(LINKAGE).append(
+				" void @__init_allocation_profile() ").append(FUNCTION_ATTRS)
+				.append(" {\n");
+		output.append("\tcall void @cool_profile_alloc_init(i32 ").append(
+				allocationSites.size()).append(
+				", i8** getelementptr inbounds (").append(table).append(
+				"* @__allocation_sites, i32 0, i32 0), i32 ").append(
+				env.hierarchy.size()).append(", ").append(file.typeAndName())
+				.append(")\n");
+		output.append("\tret void\n}\n\n");
+	}
+	
+	/*
+	 * Redirect output to a fresh buffer for a function body, so that the
+	 * allocas it needs can be collected separately and placed first.
+	 */
+	private StringBuilder beginFunctionBody() {
+		final StringBuilder enclosing = output;
+		output = new StringBuilder();
+		prologue = new StringBuilder();
+		block = "entry";
+		return enclosing;
+	}
+	
+	private void endFunctionBody(final StringBuilder enclosing) {
+		enclosing.append("entry:\n").append(prologue).append(output);
+		output = enclosing;
+		prologue = null;
 	}
 	
 	protected void comment(final String comment) {
@@ -252,41 +886,18 @@ public class CodeGenerator {
 		if (n != null) {
 			switch (n.kind) {
 			
-			case sym.TRUE: {
-				comment("START True literal");
-				final Register b = instantiate(BOOL);
-				final Register bP = load(b);
-				setBool(bP, true);
-				comment("END True literal");
-				return b;
-			}
+			case sym.TRUE:
+				return new Register("1", "i1");
 				
-			case sym.FALSE: {
-				comment("START False literal");
-				final Register b = instantiate(BOOL);
-				comment("END False literal");
-				return b;
-			}
+			case sym.FALSE:
+				return new Register("0", "i1");
 				
-			case sym.INTLIT: {
-				comment(MessageFormat
-						.format("START Int literal ({0})", n.value));
-				final Register i = instantiate(INT);
-				final Register iP = load(i);
-				setInt(iP, Integer.parseInt((String) n.value));
-				comment(MessageFormat.format("END Int literal ({0})", n.value));
-				return i;
-			}
+			case sym.INTLIT:
+				return new Register("" + Integer.parseInt((String) n.value),
+						"i32");
 				
 			case sym.STRINGLIT: {
-				final String v = ((String) n.value).replaceAll("[^A-Za-z0-9]",
-						"");
-				comment(MessageFormat.format("START String literal ({0})", v));
-				final Register str = instantiate(STRING);
-				final Register strP = load(str);
-				setString(strP, (String) n.value);
-				comment(MessageFormat.format("END String literal ({0})", v));
-				return str;
+				return stringConstant((String) n.value);
 			}
 				
 			case sym.ID: {
@@ -296,21 +907,23 @@ public class CodeGenerator {
 				comment(MessageFormat.format("START ID load ({0})", n.value));
 				final Register local = env.registers.get((String) n.value);
 				if (local != null) {
-					return local;
+					final Register value = load(local);
+					comment(MessageFormat.format("END ID load ({0})", n.value));
+					return value;
 				}
-				Environment.CoolClass curClass = cls;
-				Environment.CoolAttribute a = null;
-				while (a == null && curClass != OBJECT) {
-					a = curClass.attributes.get(n.value);
-					curClass = curClass.parent;
+				final Environment.CoolAttribute a = env.lookupAttribute(cls,
+						(String) n.value);
+				final int index = a.index;
+				if (Trace.CODEGEN.on(Trace.Level.DEBUG)) {
+					Trace.CODEGEN.debug(
+							"Attribute {0} is at index {1} of class {2}", a,
+							index, a.parent);
 				}
-				final int index = cls.attrList.indexOf(a) + 1;
-				log("Attribute " + a + " is at index " + index + " of class "
-						+ a.parent);
 				final Register idPtr = getElementPtr(thiz, a.type
-						.getInternalInstanceName()
-						+ "**", 0, index);
-				final Register idInst = load(idPtr);
+						.getInternalValueType()
+						+ "*", 0, index);
+				final Register idInst = coerce(load(idPtr, tbaa(a)), a.type
+						.getInternalValueType());
 				comment(MessageFormat.format("END ID load ({0})", n.value));
 				return idInst;
 			}
@@ -318,39 +931,41 @@ public class CodeGenerator {
 			case sym.ASSIGN: {
 				comment("Start ASSIGN");
 				
-				// Get attribute location
+				final Register rightSide = generate(cls, thiz, n.right);
+				
 				final String id = (String) n.left.value;
 				final Register local = env.registers.get(id);
 				if (local != null) {
-					return local;
+					store(coerce(rightSide, local.derefType()), local);
+					comment("End ASSIGN");
+					return rightSide;
 				}
-				Environment.CoolClass curClass = cls;
-				Environment.CoolAttribute a = null;
-				while (a == null && curClass != OBJECT) {
-					a = curClass.attributes.get(id);
-					curClass = curClass.parent;
-				}
-				final int index = cls.attrList.indexOf(a) + 1;
-				log("Attribute " + a + " is at index " + index + " of class "
-						+ a.parent);
-				final Register thizInst = makeSinglePtr(thiz);
-				final Register idPtr = getElementPtr(thizInst, a.type
-						.getInternalInstanceName()
-						+ "**", 0, index);
 				
-				final Register rightSide = generate(cls, thiz, n.right);
-				final Register rightInst = makeSinglePtr(rightSide);
-				
-				store(rightInst, idPtr);
+				// Get attribute location
+				final Environment.CoolAttribute a = env.lookupAttribute(cls, id);
+				final int index = a.index;
+				if (Trace.CODEGEN.on(Trace.Level.DEBUG)) {
+					Trace.CODEGEN.debug(
+							"Attribute {0} is at index {1} of class {2}", a,
+							index, a.parent);
+				}
+				final Register idPtr = getElementPtr(thiz, a.type
+						.getInternalValueType()
+						+ "*", 0, index);
+				store(coerce(rightSide, idPtr.derefType()), idPtr, tbaa(a));
 				
 				comment("End ASSIGN");
 				return rightSide;
 			}
 				
 			case sym.NEW: {
-				final Register newObj = instantiate(env
-						.getClass((String) n.value));
-				return newObj;
+				final Environment.CoolClass newClass = env
+						.getClass((String) n.value);
+				if (newClass == INT || newClass == BOOL || newClass == STRING) {
+					return defaultValue(newClass);
+				}
+				return instantiate(newClass, escapeAnalysis
+						.isStackAllocated(n));
 			}
 				
 			case sym.DOT: {
@@ -361,70 +976,157 @@ public class CodeGenerator {
 				if (n.left != null) {
 					id = generate(cls, thiz, n.left);
 					curClass = n.left.type;
-					log(MessageFormat.format(
+					Trace.CODEGEN.debug(
 							"Target of method invocation is {0} of type {1}",
-							id.typeAndName(), cls));
+							id, cls);
 				}
 				
 				if (n.center != null) {
 					curClass = env.getClass((String) n.center.value);
-					log(MessageFormat.format(
+					Trace.CODEGEN.debug(
 							"Will statically use type {0} for method call.",
-							curClass));
+							curClass);
 				}
 				
 				final List<Register> mArgs = processMethodArgs(cls, thiz,
 						n.right);
 				final List<Register> args = new LinkedList<Register>();
 				
-				log("Looking up method " + n.value + " in " + curClass);
+				Trace.CODEGEN.debug("Looking up method {0} in {1}", n.value,
+						curClass);
 				final Environment.CoolMethod method = env.lookupMethod(
 						curClass, (String) n.value);
-				log("Will call method " + method + " at index " + method.index
-						+ " of " + method.parent);
+				if (Trace.CODEGEN.on(Trace.Level.DEBUG)) {
+					Trace.CODEGEN.debug(
+							"Will call method {0} at index {1} of {2}", method,
+							method.index, method.parent);
+				}
 				
-				final int i = 0;
+				// Every override of a slot has the signature of the method
+				// that introduced it, so the arguments and receiver are
+				// passed as that method declares them
+				final Environment.CoolMethod slot = method.origin;
+				int i = 0;
 				for (final Register r : mArgs) {
-					final String desiredType = method.arguments.get(i).type
-							.getInternalInstanceName()
-							+ "*";
-					final String actualType = r.type;
-					if (!desiredType.equals(actualType)) {
-						if (actualType.startsWith(desiredType)) {
-							final Register q = load(r);
-							args.add(q);
-						}
-					} else {
-						args.add(r);
-					}
-					
+					final String desiredType = slot.arguments.get(i++).type
+							.getInternalValueType();
+					args.add(coerce(r, desiredType));
 				}
 				
-				comment("Get pointer to class of object");
-				final Register castId = bitcast(id, curClass
+				final Register receiver = coerce(id, curClass
 						.getInternalInstanceName()
 						+ "*");
-				final Register idClassPtr = getElementPtr(castId, curClass
+				
+				// Static dispatch names its target exactly; otherwise the
+				// call is direct if no subclass of the receiver's static
+				// type overrides the method
+				final Environment.CoolMethod target = n.center != null ? method
+						: curClass.monomorphic[method.index];
+				if (target != null && target.hasImplementation()) {
+					checkReceiver(n.left, id, receiver);
+					output.append("\t; direct call to ").append(target).append(
+							" of ").append(target.parent).append("\n");
+					final Register call = call(new Register(target
+							.getInternalName(), target.getInternalType()),
+							bitcastIfNeeded(receiver, target.parent
+									.getInternalInstanceName()
+									+ "*"), slot.type.getInternalValueType(),
+							args);
+					comment(MessageFormat.format("END Method call ({0})",
+							n.value));
+					return call;
+				}
+				
+				checkReceiver(n.left, id, receiver);
+				comment("Get pointer to class of object");
+				final Register idClassPtr = getElementPtr(receiver, curClass
 						.getInternalClassName()
 						+ "**", 0, 0);
-				// Register clsCast = bitcast(idClassPtr,
-				// method.parent.getInternalClassName() + "**");
-				final Register idClass = makeSinglePtr(idClassPtr);
+				final Register idClass = load(idClassPtr, tbaa(TBAA_CLASS));
+				final int site = dispatchSite();
+				if (profileFile != null) {
+					final Register classId = loadInvariant(getElementPtr(
+							idClass, "i32*", 0, CLASS_ID_FIELD),
+							tbaa(TBAA_CLASS_ID));
+					final Register counter = nextRegister("i64*");
+					output.append("\t").append(counter.name).append(
+							" = getelementptr inbounds [").append(
+							env.hierarchy.size()).append(
+							" x i64]* @__profile_receiver_").append(site)
+							.append(", i32 0, ").append(classId.typeAndName())
+							.append("\n");
+					increment(counter);
+				}
+				
+				// Where one class dominates the receivers, test for it and
+				// call its method directly
+				final Environment.CoolClass expected = expectedReceiver(site,
+						curClass, method);
+				String done = null;
+				String guardEnd = null;
+				Register guarded = null;
+				if (expected != null) {
+					final Environment.CoolMethod likely = env.lookupMethod(
+							expected, method.name);
+					final String direct = nextLabel();
+					final String virtual = nextLabel();
+					done = nextLabel();
+					final Register hit = nextRegister("i1");
+					output.append("\t").append(hit.name).append(" = icmp eq ")
+							.append(idClass.typeAndName()).append(", ");
+					if (expected == curClass) {
+						output.append(expected.getInternalDescriptorName());
+					} else {
+						output.append("bitcast (").append(
+								expected.getInternalClassName()).append("* ")
+								.append(expected.getInternalDescriptorName())
+								.append(" to ").append(idClass.type).append(
+										")");
+					}
+					output.append("\n");
+					branch(hit, direct, virtual, profileData.receiverSplit(
+							site, expected.classId));
+					writeLabel(direct);
+					output.append("\t; guarded direct call to ").append(likely)
+							.append(" of ").append(likely.parent).append("\n");
+					guarded = call(new Register(likely.getInternalName(),
+							likely.getInternalType()), bitcastIfNeeded(receiver,
+							likely.parent.getInternalInstanceName() + "*"),
+							slot.type.getInternalValueType(), args);
+					guardEnd = block;
+					branch(done);
+					writeLabel(virtual);
+				}
 				comment("getting method " + method + " of " + method.parent);
-				final Register methodPtr = getElementPtr(idClass, method
+				final Register methodPtr = getElementPtr(idClass, slot
 						.getInternalType()
-						+ "*", 0, method.index);
-				final Register methodInst = load(methodPtr);
+						+ "*", 0, METHOD_SLOT_BASE + method.index);
+				final Register methodInst = loadInvariant(methodPtr,
+						tbaa(TBAA_VTABLE));
 				
-				final Register cast = bitcast(id, method.parent
+				final Register cast = bitcastIfNeeded(receiver, slot.parent
 						.getInternalInstanceName()
 						+ "*");
 				
 				output.append("\t; calling method ").append(method)
 						.append("\n");
-				final Register call = call(methodInst, cast, method.type
-						.getInternalInstanceName()
-						+ "*", args);
+				final Register call = call(methodInst, cast, slot.type
+						.getInternalValueType(), args);
+				if (expected != null) {
+					final String virtualEnd = block;
+					branch(done);
+					writeLabel(done);
+					final Register result = nextRegister(call.type);
+					output.append("\t").append(result.name).append(" = phi ")
+							.append(result.type).append(" [ ").append(
+									guarded.name).append(", %").append(
+									guardEnd).append(" ], [ ").append(
+									call.name).append(", %").append(virtualEnd)
+							.append(" ]\n");
+					comment(MessageFormat.format("END Method call ({0})",
+							n.value));
+					return result;
+				}
 				
 				comment(MessageFormat.format("END Method call ({0})", n.value));
 				return call;
@@ -432,44 +1134,32 @@ public class CodeGenerator {
 				
 			case sym.IF: {
 				comment("START If statement");
-				final Register cond = generate(cls, thiz, n.left);
-				final Register condLoad = makeSinglePtr(cond);
-				final Register condPtr = getElementPtr(condLoad, "i1 *", 0, 1);
-				final Register condVal = load(condPtr);
 				final String trueBranch = nextLabel();
 				final String falseBranch = nextLabel();
 				final String doneBranch = nextLabel();
-				branch(condVal, trueBranch, falseBranch);
+				final String resultType = n.type.getInternalValueType();
+				final int site = branchSite();
+				generateCondition(cls, thiz, n.left, trueBranch, falseBranch,
+						profileData != null ? profileData.branch(site) : null);
 				writeLabel(trueBranch);
-				Register trueResult = generate(cls, thiz, n.center);
-				trueResult = makeSinglePtr(trueResult);
-				if (!trueResult.type.equals(n.type.getInternalInstanceName()
-						+ "*")) {
-					trueResult = bitcast(trueResult, n.type
-							.getInternalInstanceName()
-							+ "*");
-				}
+				countBranch(site, 0);
+				final Register trueResult = coerce(generate(cls, thiz,
+						n.center), resultType);
+				final String trueEnd = block;
 				branch(doneBranch);
 				writeLabel(falseBranch);
-				Register falseResult = generate(cls, thiz, n.right);
-				falseResult = makeSinglePtr(falseResult);
-				if (!falseResult.type.equals(n.type.getInternalInstanceName()
-						+ "*")) {
-					falseResult = bitcast(falseResult, n.type
-							.getInternalInstanceName()
-							+ "*");
-				}
+				countBranch(site, 1);
+				final Register falseResult = coerce(generate(cls, thiz,
+						n.right), resultType);
+				final String falseEnd = block;
 				branch(doneBranch);
 				writeLabel(doneBranch);
-				final Register ifResult = nextRegister(n.type
-						.getInternalInstanceName()
-						+ "*");
+				final Register ifResult = nextRegister(resultType);
 				output.append("\t").append(ifResult.name).append(" = phi ")
 						.append(ifResult.type).append(" [ ").append(
-								trueResult.name).append(", %").append(
-								trueBranch).append(" ], [ ").append(
-								falseResult.name).append(", %").append(
-								falseBranch).append(" ]\n");
+								trueResult.name).append(", %").append(trueEnd)
+						.append(" ], [ ").append(falseResult.name).append(
+								", %").append(falseEnd).append(" ]\n");
 				comment("END If statement");
 				return ifResult;
 			}
@@ -485,91 +1175,73 @@ public class CodeGenerator {
 			}
 				
 			case sym.LET: {
-				final int numInts = processLetIntroductions(cls, thiz, n.left);
+				env.registers.enterScope();
+				processLetIntroductions(cls, thiz, n.left);
 				final Register result = generate(cls, thiz, n.right);
-				for (int i = 0; i < numInts; ++i) {
-					env.registers.pop();
-				}
+				env.registers.exitScope();
 				return result;
 			}
-				// TODO CASE
+				
+			case sym.CASE:
+				return generateCase(cls, thiz, n);
 				
 			case sym.WHILE: {
 				comment("START While loop");
 				final String loopHead = nextLabel();
 				final String loopTest = nextLabel();
 				final String afterLoop = nextLabel();
+				final int site = branchSite();
 				branch(loopTest);
 				writeLabel(loopHead);
+				countBranch(site, 0);
 				@SuppressWarnings("unused")
 				final Register loop = generate(cls, thiz, n.right);
 				branch(loopTest);
 				writeLabel(loopTest);
-				final Register cond = generate(cls, thiz, n.left);
-				final Register condLoad = load(cond);
-				final Register condPtr = getElementPtr(condLoad, "i1 *", 0, 1);
-				final Register condVal = load(condPtr);
-				branch(condVal, loopHead, afterLoop);
+				generateCondition(cls, thiz, n.left, loopHead, afterLoop,
+						profileData != null ? profileData.branch(site) : null);
 				writeLabel(afterLoop);
-				final Register resultPtr = nextRegister(OBJECT
-						.getInternalInstanceName()
-						+ "**");
-				alloca(resultPtr);
-				store(new Register("null", OBJECT.getInternalInstanceName()
-						+ "*"), resultPtr);
-				final Register result = load(resultPtr);
+				countBranch(site, 1);
 				comment("END While loop");
-				return result;
+				return new Register("null", OBJECT.getInternalValueType());
 			}
 				
 			case sym.ISVOID: {
 				comment("START isvoid");
 				final Register value = generate(cls, thiz, n.left);
+				if (isUnboxed(value)) {
+					// An Int or Bool is never void
+					comment("END isvoid");
+					return new Register("0", "i1");
+				}
 				final Register resVal = nextRegister("i1");
 				output.append("\t").append(resVal).append(" = icmp eq ")
 						.append(value.typeAndName()).append(", null").append(
 								"\n");
 				comment("END isvoid");
-				final Register resultPtr = instantiate(BOOL);
-				final Register result = load(resultPtr);
-				final Register boolPtr = getElementPtr(result, "i1 *", 0, 1);
-				store(resVal, boolPtr);
-				
-				return resultPtr;
+				return resVal;
 			}
 				
 			case sym.NOT: {
 				comment("START not");
-				final Register cond = generate(cls, thiz, n.left);
-				final Register condLoad = makeSinglePtr(cond);
-				final Register condPtr = getElementPtr(condLoad, "i1 *", 0, 1);
-				final Register condVal = load(condPtr);
+				final Register condVal = coerce(generate(cls, thiz, n.left),
+						"i1");
 				
 				final Register resVal = nextRegister("i1");
-				output.append("\t").append(resVal).append(" = icmp ne ")
-						.append(condVal.typeAndName()).append(", 0\n");
-				
-				final Register resultPtr = instantiate(BOOL);
-				final Register result = load(resultPtr);
-				final Register boolPtr = getElementPtr(result, "i1 *", 0, 1);
-				store(resVal, boolPtr);
+				output.append("\t").append(resVal).append(" = xor ").append(
+						condVal.typeAndName()).append(", 1\n");
 				
 				comment("END not");
-				return resultPtr;
+				return resVal;
 			}
 				
 			case sym.LEQ:
 			case sym.LT: {
 				comment("START less-than comparison");
-				final Register int1 = generate(cls, thiz, n.left);
-				final Register int1load = makeSinglePtr(int1);
-				final Register int1Ptr = getElementPtr(int1load, "i32 *", 0, 1);
-				final Register int1Val = load(int1Ptr);
-				
-				final Register int2 = generate(cls, thiz, n.right);
-				final Register int2load = makeSinglePtr(int2);
-				final Register int2Ptr = getElementPtr(int2load, "i32 *", 0, 1);
-				final Register int2Val = load(int2Ptr);
+				final Register int1Val = coerce(generate(cls, thiz, n.left),
+						"i32");
+				final Register int2Val = coerce(generate(cls, thiz, n.right),
+						"i32");
 				
 				String op;
 				if (n.kind == sym.LEQ) {
@@ -583,13 +1255,8 @@ public class CodeGenerator {
 						.append(op).append(" ").append(int1Val.typeAndName())
 						.append(", ").append(int2Val.name).append("\n");
 				
-				final Register resultPtr = instantiate(BOOL);
-				final Register result = load(resultPtr);
-				final Register boolPtr = getElementPtr(result, "i1 *", 0, 1);
-				store(resVal, boolPtr);
-				
 				comment("END less-than comparison");
-				return resultPtr;
+				return resVal;
 			}
 				
 			case sym.PLUS:
@@ -608,123 +1275,59 @@ public class CodeGenerator {
 			}
 				
 			case sym.EQ: {
-				if (n.left.type == INT) {
-					comment("START integer equality comparison");
-					final Register int1 = generate(cls, thiz, n.left);
-					final Register int1load = makeSinglePtr(int1);
-					final Register int1Ptr = getElementPtr(int1load, "i32 *",
-							0, 1);
-					final Register int1Val = load(int1Ptr);
-					
-					final Register int2 = generate(cls, thiz, n.right);
-					final Register int2load = makeSinglePtr(int2);
-					final Register int2Ptr = getElementPtr(int2load, "i32 *",
-							0, 1);
-					final Register int2Val = load(int2Ptr);
+				if (n.left.type == INT || n.left.type == BOOL) {
+					comment("START unboxed equality comparison");
+					final String type = n.left.type.getInternalValueType();
+					final Register int1Val = coerce(generate(cls, thiz, n.left),
+							type);
+					final Register int2Val = coerce(
+							generate(cls, thiz, n.right), type);
 					
 					final Register resVal = nextRegister("i1");
 					output.append("\t").append(resVal).append(" = icmp eq ")
 							.append(" ").append(int1Val.typeAndName()).append(
 									", ").append(int2Val.name).append("\n");
-					final Register resultPtr = instantiate(BOOL);
-					final Register result = load(resultPtr);
-					final Register boolPtr = getElementPtr(result, "i1 *", 0, 1);
-					store(resVal, boolPtr);
-					
-					comment("END integer equality comparison");
-					return resultPtr;
-				} else if (n.left.type == BOOL) {
-					comment("START bool equality comparison");
-					final Register int1 = generate(cls, thiz, n.left);
-					final Register int1load = makeSinglePtr(int1);
-					final Register int1Ptr = getElementPtr(int1load, "i1 *", 0,
-							1);
-					final Register int1Val = load(int1Ptr);
-					
-					final Register int2 = generate(cls, thiz, n.right);
-					final Register int2load = makeSinglePtr(int2);
-					final Register int2Ptr = getElementPtr(int2load, "i1 *", 0,
-							1);
-					final Register int2Val = load(int2Ptr);
 					
-					final Register resVal = nextRegister("i1");
-					output.append("\t").append(resVal).append(" = icmp eq ")
-							.append(" ").append(int1Val.typeAndName()).append(
-									", ").append(int2Val.name).append("\n");
-					final Register resultPtr = instantiate(BOOL);
-					final Register result = load(resultPtr);
-					final Register boolPtr = getElementPtr(result, "i1 *", 0, 1);
-					store(resVal, boolPtr);
-					
-					comment("END bool equality comparison");
-					return resultPtr;
+					comment("END unboxed equality comparison");
+					return resVal;
 				} else if (n.left.type == STRING) {
 					comment("START string equality comparison");
-					final Register int1 = generate(cls, thiz, n.left);
-					final Register int1load = makeSinglePtr(int1);
-					final Register int1Ptr = getElementPtr(int1load, "i8 **",
-							0, 2);
-					final Register int1Val = load(int1Ptr);
-					
-					final Register int2 = generate(cls, thiz, n.right);
-					final Register int2load = makeSinglePtr(int2);
-					final Register int2Ptr = getElementPtr(int2load, "i8 **",
-							0, 2);
-					final Register int2Val = load(int2Ptr);
-					
-					final Register call = nextRegister("i32");
-					
-					output.append("\t").append(call.name).append(
-							" = call i32 @strcmp(").append(
-							int1Val.typeAndName()).append(", ").append(
-							int2Val.typeAndName()).append(")\n");
-					
-					final Register resVal = nextRegister("i1");
-					output.append("\t").append(resVal).append(" = icmp eq ")
-							.append(" ").append(call.typeAndName()).append(
-									", 0\n");
-					
-					final Register resultPtr = instantiate(BOOL);
-					final Register result = load(resultPtr);
-					final Register boolPtr = getElementPtr(result, "i1 *", 0, 1);
-					store(resVal, boolPtr);
-					
+					final Register string1 = generate(cls, thiz, n.left);
+					final Register string2 = generate(cls, thiz, n.right);
+					final Register resVal = stringEquals(string1, string2);
 					comment("END string equality comparison");
-					return resultPtr;
+					return resVal;
 				} else {
 					comment("START object equality comparison");
-					final Register arg1 = generate(cls, thiz, n.left);
-					final Register arg2 = generate(cls, thiz, n.right);
+					final String type = OBJECT.getInternalValueType();
+					final Register arg1 = coerce(generate(cls, thiz, n.left),
+							type);
+					final Register arg2 = coerce(generate(cls, thiz, n.right),
+							type);
 					
 					final Register resVal = nextRegister("i1");
 					output.append("\t").append(resVal).append(" = icmp eq ")
 							.append(" ").append(arg1.typeAndName())
 							.append(", ").append(arg2.name).append("\n");
 					
-					final Register resultPtr = instantiate(BOOL);
-					final Register result = load(resultPtr);
-					final Register boolPtr = getElementPtr(result, "i1 *", 0, 1);
-					store(resVal, boolPtr);
 					comment("END object equality comparison");
-					return resultPtr;
+					return resVal;
 				}
 			}
 				
 			case sym.NEG: {
 				comment("START negation");
 				final Register arg1 = generate(cls, thiz, n.left);
-				final Register zeroPtr = instantiate(INT);
-				final Register zero = load(zeroPtr);
-				setInt(zero, 0);
-				final Register result = intOpt(sym.MINUS, zero, arg1);
+				final Register result = intOpt(sym.MINUS, new Register("0",
+						"i32"), arg1);
 				comment("END negation");
 				return result;
 			}
 				
 			default:
-				if (debug) {
-					log("Unknown node type found in AST:"
-							+ Util.idToName(n.kind));
+				if (Trace.CODEGEN.on(Trace.Level.DEBUG)) {
+					Trace.CODEGEN.debug("Unknown node type found in AST: {0}",
+							Util.idToName(n.kind));
 				} else {
 					throw new CodeGenerationException(
 							"Unknown node type found in AST: "
@@ -735,37 +1338,339 @@ public class CodeGenerator {
 		return null;
 	}
 	
-	private int processLetIntroductions(final Environment.CoolClass cls,
-			final Register thiz, final ASTnode node)
+	/*
+	 * The branch taken is the one whose type is the closest ancestor of the
+	 * scrutinee's class. Those ancestors form a chain, so testing branches
+	 * deepest type first and taking the first match finds it. Each test is
+	 * one unsigned comparison of the class ID against the branch type's
+	 * subtree interval; when no branch type contains another, a switch on
+	 * the class ID selects the branch directly instead.
+	 */
+	private Register generateCase(final Environment.CoolClass cls,
+			final Register thiz, final ASTnode n)
 			throws CodeGenerationException, Environment.EnvironmentException {
-		return processLetIntroductions(cls, thiz, node, 0);
+		comment("START case");
+		final Register value = generate(cls, thiz, n.left);
+		final Environment.CoolClass staticType = n.left.type;
+		final String resultType = n.type.getInternalValueType();
+		
+		final List<ASTnode> branches = new ArrayList<ASTnode>();
+		collectCaseBranches(n.right, branches);
+		Collections.sort(branches, new Comparator<ASTnode>() {
+			public int compare(final ASTnode b1, final ASTnode b2) {
+				return env.hierarchy.depth(b2.left.right.type)
+						- env.hierarchy.depth(b1.left.right.type);
+			}
+		});
+		
+		// Drop branches no object of the static type can reach; a branch
+		// whose type is an ancestor of the static type matches everything
+		// the branches before it did not
+		final List<ASTnode> reachable = new ArrayList<ASTnode>();
+		boolean catchAll = false;
+		for (final ASTnode b : branches) {
+			final Environment.CoolClass type = b.left.right.type;
+			if (env.hierarchy.isSubtype(staticType, type)) {
+				reachable.add(b);
+				catchAll = true;
+				break;
+			} else if (env.hierarchy.isSubtype(type, staticType)
+					&& !isUnboxed(value)) {
+				reachable.add(b);
+			}
+		}
+		if (Trace.CODEGEN.on(Trace.Level.DEBUG)) {
+			Trace.CODEGEN.debug("Case on {0}: {1} of {2} branches reachable",
+					staticType, reachable.size(), branches.size());
+		}
+		
+		final List<String> labels = new ArrayList<String>();
+		for (int i = 0; i < reachable.size(); ++i) {
+			labels.add(nextLabel());
+		}
+		final String noMatch = nextLabel();
+		final String done = nextLabel();
+		
+		if (isUnboxed(value)) {
+			// Int and Bool have no subclasses, so the branch is known
+			branch(catchAll ? labels.get(0) : noMatch);
+		} else {
+			final String isVoid = nextLabel();
+			final String notVoid = nextLabel();
+			final Register voidTest = nextRegister("i1");
+			output.append("\t").append(voidTest.name).append(" = icmp eq ")
+					.append(value.typeAndName()).append(", null\n");
+			branch(voidTest, isVoid, notVoid);
+			writeLabel(isVoid);
+			fatal(CASE_ON_VOID);
+			writeLabel(notVoid);
+			
+			final Register receiver = coerce(value, staticType
+					.getInternalInstanceName()
+					+ "*");
+			final Register clazz = load(getElementPtr(receiver, staticType
+					.getInternalClassName()
+					+ "**", 0, 0), tbaa(TBAA_CLASS));
+			final Register classId = loadInvariant(getElementPtr(clazz, "i32*",
+					0, CLASS_ID_FIELD), tbaa(TBAA_CLASS_ID));
+			
+			boolean disjoint = !catchAll;
+			for (int i = 0; i < reachable.size() && disjoint; ++i) {
+				for (int j = i + 1; j < reachable.size(); ++j) {
+					if (env.hierarchy.isSubtype(reachable.get(i).left.right.type,
+							reachable.get(j).left.right.type)) {
+						disjoint = false;
+						break;
+					}
+				}
+			}
+			
+			if (disjoint && reachable.size() > 1) {
+				output.append("\tswitch ").append(classId.typeAndName())
+						.append(", label %").append(noMatch).append(" [\n");
+				for (int i = 0; i < reachable.size(); ++i) {
+					final Environment.CoolClass type = reachable.get(i).left.right.type;
+					for (int id = type.classId; id <= env.hierarchy
+							.lastDescendant(type); ++id) {
+						output.append("\t\ti32 ").append(id).append(
+								", label %").append(labels.get(i)).append("\n");
+					}
+				}
+				output.append("\t]\n");
+			} else {
+				for (int i = 0; i < reachable.size(); ++i) {
+					final Environment.CoolClass type = reachable.get(i).left.right.type;
+					if (catchAll && i == reachable.size() - 1) {
+						branch(labels.get(i));
+						break;
+					}
+					final Register offset = nextRegister("i32");
+					output.append("\t").append(offset.name).append(" = sub ")
+							.append(classId.typeAndName()).append(", ").append(
+									type.classId).append("\n");
+					final Register inRange = nextRegister("i1");
+					output.append("\t").append(inRange.name).append(
+							" = icmp ult ").append(offset.typeAndName())
+							.append(", ").append(
+									env.hierarchy.lastDescendant(type)
+											- type.classId + 1).append("\n");
+					final String next = i == reachable.size() - 1 ? noMatch
+							: nextLabel();
+					branch(inRange, labels.get(i), next);
+					if (next != noMatch) {
+						writeLabel(next);
+					}
+				}
+			}
+		}
+		
+		if (!catchAll) {
+			writeLabel(noMatch);
+			fatal(CASE_NO_MATCH);
+		}
+		
+		final List<Register> results = new ArrayList<Register>();
+		final List<String> ends = new ArrayList<String>();
+		for (int i = 0; i < reachable.size(); ++i) {
+			final ASTnode b = reachable.get(i);
+			final Environment.CoolClass type = b.left.right.type;
+			writeLabel(labels.get(i));
+			env.registers.enterScope();
+			final Register slot = nextRegister(type.getInternalValueType() + "*");
+			alloca(slot);
+			store(coerce(value, type.getInternalValueType()), slot);
+			env.registers.bind((String) b.left.left.value, slot);
+			results.add(coerce(generate(cls, thiz, b.right), resultType));
+			env.registers.exitScope();
+			ends.add(block);
+			branch(done);
+		}
+		
+		writeLabel(done);
+		if (results.isEmpty()) {
+			// Every path aborted; done is never reached
+			output.append("\tunreachable\n");
+			writeLabel(nextLabel());
+			comment("END case");
+			return defaultValue(n.type);
+		}
+		final Register result = nextRegister(resultType);
+		output.append("\t").append(result.name).append(" = phi ").append(
+				resultType);
+		for (int i = 0; i < results.size(); ++i) {
+			output.append(i == 0 ? " " : ", ").append("[ ").append(
+					results.get(i).name).append(", %").append(ends.get(i))
+					.append(" ]");
+		}
+		output.append("\n");
+		comment("END case");
+		return result;
 	}
 	
-	private int processLetIntroductions(final Environment.CoolClass cls,
-			final Register thiz, final ASTnode node, int numVars)
+	private void collectCaseBranches(final ASTnode n,
+			final List<ASTnode> branches) {
+		if (n != null) {
+			if (n.kind == sym.SEMI) {
+				collectCaseBranches(n.left, branches);
+				collectCaseBranches(n.right, branches);
+			} else {
+				branches.add(n);
+			}
+		}
+	}
+	
+	/*
+	 * Dispatch on void is a runtime error, and the callee may assume a
+	 * non-null %this, so the receiver is tested before the call unless it
+	 * cannot be void: self, a new object, or a boxed Int or Bool.
+	 */
+	private void checkReceiver(final ASTnode n, final Register value,
+			final Register receiver) {
+		if (n == null || n.kind == sym.NEW
+				|| (n.kind == sym.ID && n.value.equals("self"))
+				|| isUnboxed(value)) {
+			return;
+		}
+		final String isVoid = nextLabel();
+		final String notVoid = nextLabel();
+		final Register voidTest = nextRegister("i1");
+		output.append("\t").append(voidTest.name).append(" = icmp eq ")
+				.append(receiver.typeAndName()).append(", null\n");
+		branch(voidTest, isVoid, notVoid);
+		writeLabel(isVoid);
+		fatal(DISPATCH_ON_VOID);
+		writeLabel(notVoid);
+	}
+	
+	private void fatal(final String message) {
+		final Register chars = stringChars(stringConstant(message), message
+				.getBytes(UTF8).length);
+		output.append("\tcall void @cool_fatal(").append(chars.typeAndName())
+				.append(")\n");
+		output.append("\tunreachable\n");
+	}
+	
+	/*
+	 * Evaluate a Bool expression for its effect on control flow only,
+	 * branching to trueBranch or falseBranch. Comparisons branch on their
+	 * icmp directly, not swaps the targets, constants branch unconditionally
+	 * and a Bool-valued if branches from each arm, so no Bool value is
+	 * materialized for the condition. counts, if known, are how often the
+	 * whole condition was true and false; they only weight the branch when
+	 * it is a single one.
+	 */
+	private void generateCondition(final Environment.CoolClass cls,
+			final Register thiz, final ASTnode n, final String trueBranch,
+			final String falseBranch, final long[] counts)
+			throws CodeGenerationException, Environment.EnvironmentException {
+		switch (n.kind) {
+		case sym.NOT:
+			generateCondition(cls, thiz, n.left, falseBranch, trueBranch,
+					counts == null ? null
+							: new long[] { counts[1], counts[0] });
+			return;
+			
+		case sym.IF: {
+			final String thenBranch = nextLabel();
+			final String elseBranch = nextLabel();
+			generateCondition(cls, thiz, n.left, thenBranch, elseBranch, null);
+			writeLabel(thenBranch);
+			generateCondition(cls, thiz, n.center, trueBranch, falseBranch,
+					null);
+			writeLabel(elseBranch);
+			generateCondition(cls, thiz, n.right, trueBranch, falseBranch,
+					null);
+			return;
+		}
+			
+		case sym.SEMI:
+			if (n.right != null) {
+				generate(cls, thiz, n.left);
+				generateCondition(cls, thiz, n.right, trueBranch, falseBranch,
+						counts);
+				return;
+			}
+			generateCondition(cls, thiz, n.left, trueBranch, falseBranch,
+					counts);
+			return;
+			
+		default: {
+			final Register cond = coerce(generate(cls, thiz, n), "i1");
+			if (cond.name.equals("1")) {
+				branch(trueBranch);
+			} else if (cond.name.equals("0")) {
+				branch(falseBranch);
+			} else {
+				branch(cond, trueBranch, falseBranch, counts);
+			}
+		}
+		}
+	}
+	
+	/*
+	 * The class to guard for at a dispatch site, if the profile shows one
+	 * dominating its receivers and that class has an implementation of the
+	 * method; null otherwise.
+	 */
+	private Environment.CoolClass expectedReceiver(final int site,
+			final Environment.CoolClass curClass,
+			final Environment.CoolMethod method)
+			throws Environment.EnvironmentException {
+		if (profileData == null) {
+			return null;
+		}
+		final int classId = profileData.dominantReceiver(site,
+				GUARD_MIN_SHARE, GUARD_MIN_CALLS);
+		if (classId < 0 || classId >= env.hierarchy.size()) {
+			return null;
+		}
+		final Environment.CoolClass expected = env.hierarchy.byId(classId);
+		if (!env.hierarchy.isSubtype(expected, curClass)
+				|| !reachability.isInstantiated(expected)) {
+			return null;
+		}
+		final Environment.CoolMethod likely = env.lookupMethod(expected,
+				method.name);
+		if (likely == null || !likely.hasImplementation()
+				|| !reachability.isReachable(likely)) {
+			return null;
+		}
+		if (Trace.CODEGEN.on(Trace.Level.DEBUG)) {
+			Trace.CODEGEN.debug("Guarding dispatch site {0} for {1}", site,
+					expected);
+		}
+		return expected;
+	}
+	
+	private void processLetIntroductions(final Environment.CoolClass cls,
+			final Register thiz, final ASTnode node)
 			throws CodeGenerationException, Environment.EnvironmentException {
 		
 		if (node != null) {
 			switch (node.kind) {
 			case sym.COMMA: {
-				numVars += processLetIntroductions(cls, thiz, node.left, 0);
-				numVars += processLetIntroductions(cls, thiz, node.right, 0);
+				processLetIntroductions(cls, thiz, node.left);
+				processLetIntroductions(cls, thiz, node.right);
 				break;
 			}
 			case sym.ASSIGN: {
-				numVars += 1;
 				final String name = (String) node.left.left.value;
 				final Environment.CoolClass type = env
 						.getClass((String) node.left.right.value);
-				final Register letVar = instantiate(type);
+				final Register letVar = nextRegister(type
+						.getInternalValueType()
+						+ "*");
+				alloca(letVar);
+				Register letValue;
 				if (node.right != null) {
-					final Register letValuePtr = generate(cls, thiz, node.right);
-					final Register letValue = load(letValuePtr);
-					store(letValue, letVar);
+					letValue = coerce(generate(cls, thiz, node.right), type
+							.getInternalValueType());
+				} else {
+					letValue = defaultValue(type);
 				}
-				log(MessageFormat.format("Pushing {0} for {1}", letVar
-						.typeAndName(), name));
-				env.registers.push(name, letVar);
+				store(letValue, letVar);
+				Trace.CODEGEN.debug("Binding {0} for {1}", letVar, name);
+				env.registers.bind(name, letVar);
 				break;
 			}
 			default:
@@ -774,8 +1679,6 @@ public class CodeGenerator {
 								+ Util.idToName(node.kind));
 			}
 		}
-		
-		return numVars;
 	}
 	
 	protected Register makeSinglePtr(final Register ptr)
@@ -793,46 +1696,106 @@ public class CodeGenerator {
 	
 	protected void branch(final Register cond, final String trueBranch,
 			final String falseBranch) {
+		branch(cond, trueBranch, falseBranch, null);
+	}
+	
+	/*
+	 * A conditional branch, weighted by how often each side was taken if
+	 * counts is not null.
+	 */
+	protected void branch(final Register cond, final String trueBranch,
+			final String falseBranch, final long[] counts) {
 		output.append("\tbr ").append(cond.typeAndName()).append(", label %")
-				.append(trueBranch).append(", label %").append(falseBranch)
-				.append("\n");
+				.append(trueBranch).append(", label %").append(falseBranch);
+		if (counts != null) {
+			output.append(", !prof ").append(branchWeights(counts));
+		}
+		output.append("\n");
 	}
 	
 	protected void writeLabel(final String label) {
 		output.append(label).append(":\n");
+		block = label;
 	}
 	
-	private Register intOpt(final int kind, final Register r1, final Register r2)
-			throws CodeGenerationException, Environment.EnvironmentException {
-		final Register result = instantiate(INT);
-		final Register resInst = load(result);
+	/*
+	 * Equal literals (and class names) are one interned object, so pointer
+	 * identity settles most comparisons; strings of different lengths
+	 * differ without looking at their characters. Only equal-length
+	 * distinct strings are compared with memcmp. The characters are not
+	 * NUL-terminated, since substrings share them.
+	 */
+	private Register stringEquals(final Register string1,
+			final Register string2) throws CodeGenerationException {
+		final String start = block;
+		final String checkLength = nextLabel();
+		final String checkChars = nextLabel();
+		final String done = nextLabel();
+		
+		final Register same = nextRegister("i1");
+		output.append("\t").append(same.name).append(" = icmp eq ").append(
+				string1.typeAndName()).append(", ").append(string2.name)
+				.append("\n");
+		branch(same, done, checkLength);
 		
-		comment("Getting first parameter to binop");
-		final Register r1Inst = makeSinglePtr(r1);
-		final Register r1IntPtr = getElementPtr(r1Inst, "i32 *", 0, 1);
+		writeLabel(checkLength);
+		final Register length1 = load(getElementPtr(string1, "i32*", 0, 1),
+				tbaa(STRING, 1));
+		final Register length2 = load(getElementPtr(string2, "i32*", 0, 1),
+				tbaa(STRING, 1));
+		final Register sameLength = nextRegister("i1");
+		output.append("\t").append(sameLength.name).append(" = icmp eq ")
+				.append(length1.typeAndName()).append(", ").append(
+						length2.name).append("\n");
+		branch(sameLength, checkChars, done);
 		
-		comment("Getting second parameter to binop");
-		final Register r2Inst = makeSinglePtr(r2);
-		final Register r2IntPtr = getElementPtr(r2Inst, "i32 *", 0, 1);
+		writeLabel(checkChars);
+		final Register chars1 = load(getElementPtr(string1, "i8**", 0, 2),
+				tbaa(STRING, 2));
+		final Register chars2 = load(getElementPtr(string2, "i8**", 0, 2),
+				tbaa(STRING, 2));
+		final Register size = nextRegister("i64");
+		output.append("\t").append(size.name).append(" = zext ").append(
+				length1.typeAndName()).append(" to i64\n");
+		final Register cmp = nextRegister("i32");
+		output.append("\t").append(cmp.name).append(" = call i32 @memcmp(")
+				.append(chars1.typeAndName()).append(", ").append(
+						chars2.typeAndName()).append(", ").append(
+						size.typeAndName()).append(")\n");
+		final Register sameChars = nextRegister("i1");
+		output.append("\t").append(sameChars.name).append(" = icmp eq ")
+				.append(cmp.typeAndName()).append(", 0\n");
+		branch(done);
 		
-		final Register r1Int = load(r1IntPtr);
-		final Register r2Int = load(r2IntPtr);
+		writeLabel(done);
+		final Register result = nextRegister("i1");
+		output.append("\t").append(result.name).append(" = phi i1 [ 1, %")
+				.append(start).append(" ], [ 0, %").append(checkLength).append(
+						" ], [ ").append(sameChars.name).append(", %").append(
+						checkChars).append(" ]\n");
+		return result;
+	}
+	
+	private Register intOpt(final int kind, final Register r1, final Register r2)
+			throws CodeGenerationException, Environment.EnvironmentException {
+		final Register r1Int = coerce(r1, "i32");
+		final Register r2Int = coerce(r2, "i32");
 		
 		final Register temp = nextRegister("i32");
 		switch (kind) {
 		case sym.PLUS:
 			output.append("\t").append(temp.name).append(" = add ").append(
-					r1Int.typeAndName()).append(", ").append(r2Int.name)
+					ARITH_FLAGS).append(" ").append(r1Int.typeAndName()).append(", ").append(r2Int.name)
 					.append("\n");
 			break;
 		case sym.MINUS:
 			output.append("\t").append(temp.name).append(" = sub ").append(
-					r1Int.typeAndName()).append(", ").append(r2Int.name)
+					ARITH_FLAGS).append(" ").append(r1Int.typeAndName()).append(", ").append(r2Int.name)
 					.append("\n");
 			break;
 		case sym.TIMES:
 			output.append("\t").append(temp.name).append(" = mul ").append(
-					r1Int.typeAndName()).append(", ").append(r2Int.name)
+					ARITH_FLAGS).append(" ").append(r1Int.typeAndName()).append(", ").append(r2Int.name)
 					.append("\n");
 			break;
 		case sym.DIV:
@@ -842,10 +1805,7 @@ public class CodeGenerator {
 			break;
 		}
 		
-		final Register resultIntPtr = getElementPtr(resInst, "i32 *", 0, 1);
-		store(temp, resultIntPtr);
-		
-		return result;
+		return temp;
 	}
 	
 	private List<Register> processMethodArgs(final Environment.CoolClass cls,
@@ -874,21 +1834,41 @@ public class CodeGenerator {
 	
 	private void writeMainFunction() throws Environment.EnvironmentException,
 			CodeGenerationException {
-		output.append("define i32 @main() {\n\tcall void @GC_init()\n");
+		output.append("define i32 @main() ").append(FUNCTION_ATTRS).append(
+				" {\n");
+		final StringBuilder enclosing = beginFunctionBody();
+		output.append("\tcall void @GC_init()\n");
+		output.append("\tcall void @cool_runtime_init()\n");
+		if (profileFile != null) {
+			output.append("\tcall void @__init_profile()\n");
+		}
+		if (allocationProfileFile != null) {
+			output.append("\tcall void @__init_allocation_profile()\n");
+		}
+		allocationContext = "main";
 		final Environment.CoolClass mainClass = env.getClass("Main");
 		final Environment.CoolMethod mainMethod = env.lookupMethod(mainClass,
 				"main");
-		final Register main = instantiate(mainClass);
-		final Register mainInst = load(main);
-		final Register mainMethodPtr = getElementPtr(new Register(mainClass
-				.getInternalDescriptorName(), mainClass.getInternalClassName()
-				+ "*"), mainMethod.getInternalType() + "*", 0, mainMethod.index);
-		final Register mainMethodInst = load(mainMethodPtr);
-		// output.append("\t; ").append(mainMethodPtr.typeAndName()).append("\n");
-		call(mainMethodInst, mainInst, mainMethod.type
+		final Register main = instantiate(mainClass, false);
+		final Register mainInst = bitcastIfNeeded(main, mainMethod.parent
 				.getInternalInstanceName()
 				+ "*");
-		output.append("\tret i32 0\n}\n\n");
+		call(new Register(mainMethod.getInternalName(), mainMethod
+				.getInternalType()), mainInst, mainMethod.type
+				.getInternalValueType());
+		output.append("\tret i32 0\n");
+		endFunctionBody(enclosing);
+		output.append("}\n\n");
+	}
+	
+	private void generateUnreachableMethod() {
+		output.append("define ").append(LINKAGE).append(" ").append(
+				CALLING_CONV).append(" void @__unreachable_method() ").append(
+				FUNCTION_ATTRS).append(" noreturn cold {\n");
+		final StringBuilder enclosing = beginFunctionBody();
+		fatal(UNREACHABLE_METHOD);
+		endFunctionBody(enclosing);
+		output.append("}\n\n");
 	}
 	
 	private Register call(final Register methodPtr, final Register thiz,
@@ -899,8 +1879,8 @@ public class CodeGenerator {
 	private Register call(final Register methodPtr, final Register thiz,
 			final String retType, final List<Register> args) {
 		final Register call = nextRegister(retType);
-		output.append("\t").append(call.name).append(" = call ")
-				.append(retType).append(" ").append(methodPtr.name).append("(")
+		output.append("\t").append(call.name).append(" = call ").append(
+				CALLING_CONV).append(" ").append(retType).append(" ").append(methodPtr.name).append("(")
 				.append(thiz.typeAndName());
 		for (final Register r : args) {
 			output.append(", ").append(r.typeAndName());
@@ -909,101 +1889,228 @@ public class CodeGenerator {
 		return call;
 	}
 	
-	private Register instantiate(final Environment.CoolClass cls)
-			throws CodeGenerationException, Environment.EnvironmentException {
+	/*
+	 * Allocate an object, in a slot of the current stack frame if escape
+	 * analysis has shown it cannot outlive the frame, copy the class's
+	 * prototype into it, and run the rest of its initialization.
+	 */
+	private Register instantiate(final Environment.CoolClass cls,
+			final boolean onStack) throws CodeGenerationException,
+			Environment.EnvironmentException {
 		output.append("\t; START instantiating ").append(cls).append("\n");
-		final Register result = nextRegister(cls.getInternalInstanceName()
-				+ "**");
-		alloca(result);
-		malloc(result, result.derefType());
-		final Register instance = load(result);
-		output.append("\t; setting class pointer\n");
-		final Register classPtr = getElementPtr(instance, cls
-				.getInternalClassName()
-				+ "**", 0, 0);
-		final Register clazz = new Register(cls.getInternalDescriptorName(),
-				cls.getInternalClassName() + "*");
-		store(clazz, classPtr);
-		int i = 1;
-		for (final Environment.CoolAttribute a : cls.attrList) {
-			output.append("\t; START attribute ").append(a).append(" of ")
-					.append(cls).append("\n");
-			final Register attrPtr = getElementPtr(instance, a.type
-					.getInternalInstanceName()
-					+ "**", 0, i);
-			Register attrClass;
-			if (a.type == STRING || a.type == INT || a.type == BOOL) {
-				attrClass = instantiate(a.type);
-				final Register attrInst = load(attrClass);
-				store(attrInst, attrPtr);
-			} else {
-				store(new Register("null", a.type.getInternalInstanceName()
-						+ "*"), attrPtr);
-			}
-			i++;
-			output.append("\t; END attribute ").append(a).append(" of ")
-					.append(cls).append("\n");
+		final Register size = instanceSize(cls);
+		final Register instance;
+		if (onStack) {
+			Trace.CODEGEN.debug("Allocating {0} on the stack", cls);
+			instance = alloca(nextRegister(cls.getInternalInstanceName() + "*"));
+		} else {
+			instance = malloc(cls, size);
 		}
-		
-		if (cls.builtin) {
-			if (cls == STRING) {
-				output.append("\t; Setting new String to default (empty)\n");
-				setString(instance, "");
-			} else if (cls == INT) {
-				output.append("\t; Setting new Int to default (0)\n");
-				setInt(instance, 0);
-			} else if (cls == BOOL) {
-				output.append("\t; Setting new Bool to default (false)\n");
-				setBool(instance, false);
-			}
+		final Register to = bitcast(instance, "i8*");
+		final Register from = prototype(cls);
+		output.append("\tcall void @llvm.memcpy.p0i8.p0i8.i64(").append(
+				to.typeAndName()).append(", i8* bitcast (")
+				.append(from.typeAndName()).append(" to i8*), ").append(
+						size.typeAndName()).append(", i32 0, i1 false)\n");
+		if (needsInitializer(cls)) {
+			callInitializer(cls, instance);
 		}
+		output.append("\t; END instantiating ").append(cls).append("\n");
 		
-		int i2 = 1;
-		for (final Environment.CoolAttribute a : cls.attrList) {
-			if (a.node.right != null) {
-				output.append("\t; Initialize ").append(a).append(
-						" to introduced value\n");
-				final Register attrPtr = getElementPtr(instance, a.type
-						.getInternalInstanceName()
-						+ "**", 0, i2);
-				final Register v = generate(cls, result, a.node.right);
-				Register attrInst = makeSinglePtr(v);
-				if (!(attrInst.type + "*").equals(attrPtr.type)) {
-					attrInst = bitcast(attrInst, attrPtr.derefType());
+		return instance;
+	}
+	
+	/*
+	 * The String object for a literal. Each distinct literal is emitted
+	 * once, as a constant character array and a statically initialized
+	 * String that points at it, so evaluating a literal allocates nothing.
+	 * The length field holds the number of bytes, not counting the
+	 * terminating NUL.
+	 */
+	private Register stringConstant(final String val) {
+		Register str = strings.get(val);
+		if (str == null) {
+			str = new Register("@__string_" + strings.size(), STRING
+					.getInternalValueType());
+			strings.put(val, str);
+			final byte[] bytes = val.getBytes(UTF8);
+			constants.append(str.name).append(
+					".chars = private unnamed_addr constant [").append(
+					bytes.length + 1).append(" x i8] c\"");
+			for (final byte b : bytes) {
+				if (b >= 0x20 && b < 0x7f && b != '"' && b != '\\') {
+					constants.append((char) b);
+				} else {
+					constants.append(String.format("\\%02X", b & 0xff));
 				}
-				store(attrInst, attrPtr);
 			}
-			i2++;
+			constants.append("\\00\"\n");
+			constants.append(str.name).append(" = private constant ").append(
+					STRING.getInternalInstanceName()).append(" { ").append(
+					STRING.getInternalClassName()).append("* ").append(
+					STRING.getInternalDescriptorName()).append(", i32 ")
+					.append(bytes.length).append(", ").append(
+							stringChars(str, bytes.length).typeAndName())
+					.append(" }\n");
 		}
-		
-		output.append("\t; END instantiating ").append(cls).append("\n");
-		
-		return result;
+		return str;
 	}
 	
-	public void setBool(final Register b, final boolean val) {
-		final Register boolPtr = getElementPtr(b, "i1 *", 0, 1);
-		store(new Register(val ? "1" : "0", "i1"), boolPtr);
+	private Register stringChars(final Register str, final int length) {
+		return new Register("getelementptr inbounds ([" + (length + 1)
+				+ " x i8]* " + str.name + ".chars, i32 0, i32 0)", "i8*");
 	}
 	
-	public void setInt(final Register i, final int val) {
-		final Register intPtr = getElementPtr(i, "i32 *", 0, 1);
-		store(new Register("" + val, "i32"), intPtr);
+	/*
+	 * Default value of a variable of the given class: 0 or false for Int and
+	 * Bool, an empty String, and void for everything else.
+	 */
+	private Register defaultValue(final Environment.CoolClass cls)
+			throws CodeGenerationException, Environment.EnvironmentException {
+		if (cls == INT) {
+			return new Register("0", "i32");
+		} else if (cls == BOOL) {
+			return new Register("0", "i1");
+		} else if (cls == STRING) {
+			return stringConstant("");
+		}
+		return new Register("null", cls.getInternalValueType());
 	}
 	
-	public void setString(final Register str, String val)
-			throws CodeGenerationException {
-		final int len = val.length() + 1;
-		val = val.replaceAll("[\"]", "\\\\22");
-		final Register lenPtr = getElementPtr(str, "i32 *", 0, 1);
-		store(new Register("" + len, "i32"), lenPtr);
-		final Register charPtr = getElementPtr(str, "i8 **", 0, 2);
-		final Register charArrPtr = mallocCharArray(len);
-		output.append("\tstore ").append(charArrPtr.derefType()).append(" c\"")
-				.append(val).append("\\00\", ")
-				.append(charArrPtr.typeAndName()).append("\n");
-		final Register castCharArrPtr = bitcast(charArrPtr, "i8 *");
-		store(castCharArrPtr, charPtr);
+	private boolean isUnboxed(final Register r) {
+		return r.type.equals(INT.unboxedType) || r.type.equals(BOOL.unboxedType);
+	}
+	
+	/*
+	 * Convert a value to the given internal type. Int and Bool values are
+	 * only boxed when they flow somewhere expecting an object pointer, and a
+	 * boxed Int or Bool is unboxed when an i32 or i1 is expected; pointers
+	 * are otherwise just bitcast.
+	 */
+	private Register coerce(final Register r, final String type)
+			throws CodeGenerationException, Environment.EnvironmentException {
+		if (r.type.equals(type)) {
+			return r;
+		}
+		if (type.equals(INT.unboxedType) || type.equals(BOOL.unboxedType)) {
+			final Environment.CoolClass boxClass = type
+					.equals(INT.unboxedType) ? INT : BOOL;
+			final Register boxed = bitcastIfNeeded(r, boxClass
+					.getInternalInstanceName()
+					+ "*");
+			return load(getElementPtr(boxed, type + "*", 0, 1), tbaa(
+					boxClass, 1));
+		}
+		if (isUnboxed(r)) {
+			return bitcastIfNeeded(box(r), type);
+		}
+		return bitcast(r, type);
+	}
+	
+	/*
+	 * Box an Int or Bool. Boxes are immutable, so Bools use one of two
+	 * shared objects and small Ints come from a preallocated table; only
+	 * other Ints are allocated, by @__box_Int.
+	 */
+	private Register box(final Register value) throws CodeGenerationException,
+			Environment.EnvironmentException {
+		final boolean constant = !value.name.startsWith("%");
+		if (value.type.equals(BOOL.unboxedType)) {
+			final String type = BOOL.getInternalInstanceName() + "*";
+			final Register t = new Register("@__bool_true", type);
+			final Register f = new Register("@__bool_false", type);
+			if (constant) {
+				return value.name.equals("0") ? f : t;
+			}
+			final Register boxed = nextRegister(t.type);
+			output.append("\t").append(boxed.name).append(" = select ").append(
+					value.typeAndName()).append(", ").append(t.typeAndName())
+					.append(", ").append(f.typeAndName()).append("\n");
+			return boxed;
+		}
+		if (constant) {
+			final int index = Integer.parseInt(value.name) - INT_CACHE_MIN;
+			if (index >= 0 && index < INT_CACHE_SIZE) {
+				return cachedInt(Integer.toString(index));
+			}
+		}
+		return call(new Register("@__box_Int", null), value, INT
+				.getInternalInstanceName()
+				+ "*");
+	}
+	
+	private Register cachedInt(final String index) {
+		return new Register("getelementptr inbounds ([" + INT_CACHE_SIZE
+				+ " x " + INT.getInternalInstanceName()
+				+ "]* @__int_cache, i32 0, i32 " + index + ")", INT
+				.getInternalInstanceName()
+				+ "*");
+	}
+	
+	/*
+	 * The shared Bool objects, the small-Int table and @__box_Int, which
+	 * boxes an arbitrary i32. The shared boxes are constants, initialized
+	 * statically.
+	 */
+	protected void generateBoxing() throws CodeGenerationException {
+		final String boolType = BOOL.getInternalInstanceName();
+		final String intType = INT.getInternalInstanceName();
+		final String boolHeader = " = private constant " + boolType + " { "
+				+ BOOL.getInternalClassName() + "* "
+				+ BOOL.getInternalDescriptorName() + ", i1 ";
+		output.append("@__bool_false").append(boolHeader).append("0 }\n");
+		output.append("@__bool_true").append(boolHeader).append("1 }\n");
+		output.append("@__int_cache = private constant [").append(
+				INT_CACHE_SIZE).append(" x ").append(intType).append("] [");
+		for (int i = 0; i < INT_CACHE_SIZE; ++i) {
+			output.append(i == 0 ? " " : ", ").append(intType).append(" { ")
+					.append(INT.getInternalClassName()).append("* ").append(
+							INT.getInternalDescriptorName()).append(", i32 ")
+					.append(INT_CACHE_MIN + i).append(" }");
+		}
+		output.append(" ]\n\n");
+		
+		output.append("define ").append(LINKAGE).append(" ").append(
+				CALLING_CONV).append(" ").append(intType).append(
+				"* @__box_Int(i32 %v) ").append(FUNCTION_ATTRS).append(" {\n");
+		final StringBuilder enclosing = beginFunctionBody();
+		final Register v = new Register("%v", "i32");
+		final Register index = nextRegister("i32");
+		output.append("\t").append(index.name).append(" = sub ").append(
+				v.typeAndName()).append(", ").append(INT_CACHE_MIN)
+				.append("\n");
+		final Register small = nextRegister("i1");
+		output.append("\t").append(small.name).append(" = icmp ult ").append(
+				index.typeAndName()).append(", ").append(INT_CACHE_SIZE)
+				.append("\n");
+		final String cached = nextLabel();
+		final String fresh = nextLabel();
+		branch(small, cached, fresh);
+		writeLabel(cached);
+		final Register entry = nextRegister(intType + "*");
+		output.append("\t").append(entry.name).append(" = getelementptr [")
+				.append(INT_CACHE_SIZE).append(" x ").append(intType).append(
+						"]* @__int_cache, i32 0, ").append(
+						index.typeAndName()).append("\n");
+		output.append("\tret ").append(entry.typeAndName()).append("\n");
+		writeLabel(fresh);
+		allocationContext = "boxing";
+		final Register boxed = malloc(INT);
+		store(new Register(INT.getInternalDescriptorName(), INT
+				.getInternalClassName()
+				+ "*"), getElementPtr(boxed, INT.getInternalClassName() + "**",
+				0, 0), tbaa(TBAA_CLASS));
+		store(v, getElementPtr(boxed, "i32*", 0, 1), tbaa(INT, 1));
+		output.append("\tret ").append(boxed.typeAndName()).append("\n");
+		endFunctionBody(enclosing);
+		output.append("}\n\n");
+	}
+	
+	private Register bitcastIfNeeded(final Register r, final String type) {
+		if (r.type.equals(type)) {
+			return r;
+		}
+		return bitcast(r, type);
 	}
 	
 	private Register bitcast(final Register r, final String type) {
@@ -1018,6 +2125,13 @@ public class CodeGenerator {
 				.append(dest.typeAndName()).append("\n");
 	}
 	
+	private void store(final Register value, final Register dest,
+			final String tbaa) {
+		output.append("\tstore ").append(value.typeAndName()).append(", ")
+				.append(dest.typeAndName()).append(", !tbaa ").append(tbaa)
+				.append("\n");
+	}
+	
 	private Register getElementPtr(final Register r, final String type,
 			final int... args) {
 		final Register result = nextRegister(type);
@@ -1032,7 +2146,7 @@ public class CodeGenerator {
 	}
 	
 	private Register alloca(final Register r) throws CodeGenerationException {
-		output.append("\t").append(r.name).append(" = alloca ").append(
+		prologue.append("\t").append(r.name).append(" = alloca ").append(
 				r.derefType()).append("\n");
 		return r;
 	}
@@ -1044,49 +2158,107 @@ public class CodeGenerator {
 		return result;
 	}
 	
-	private Register mallocCharArray(final int len) {
-		final Register charArr = nextRegister("[" + len + " x i8]*");
-		
-		final Register call = nextRegister("i8 *");
-		output.append("\t").append(call.name).append(
-				" = call noalias i8* @GC_malloc(i64 ").append(len)
-				.append(")\n");
-		
-		output.append("\t").append(charArr.name).append(" = bitcast ").append(
-				call.typeAndName()).append(" to ").append(charArr.type).append(
-				"\n");
-		
-		return charArr;
+	private Register load(final Register from, final String tbaa)
+			throws CodeGenerationException {
+		final Register result = nextRegister(from.derefType());
+		output.append("\t").append(result.name).append(" = load ").append(
+				from.typeAndName()).append(", !tbaa ").append(tbaa).append("\n");
+		return result;
 	}
 	
-	private Register malloc(final Register r, final String type) {
-		final Register size = nextRegister(type);
-		final Register cast = nextRegister("i64");
-		output.append("\t").append(size.name).append(" = getelementptr ")
-				.append(size.type).append(" null, i32 1\n");
-		output.append("\t").append(cast.name).append(" = ptrtoint ").append(
-				type).append(" ").append(size.name).append(" to ").append(
-				cast.type).append("\n");
-		
+	/*
+	 * A load from a class descriptor, which is constant. Such loads can be
+	 * hoisted and merged freely. An object's class pointer is not loaded
+	 * this way: the object's memory is written after allocation, and a
+	 * stack slot is reused for a new object on each pass through a loop.
+	 */
+	private Register loadInvariant(final Register from, final String tbaa)
+			throws CodeGenerationException {
+		final Register result = nextRegister(from.derefType());
+		output.append("\t").append(result.name).append(" = load ").append(
+				from.typeAndName()).append(", !tbaa ").append(tbaa).append(
+				", !invariant.load ").append(INVARIANT).append("\n");
+		return result;
+	}
+	
+	private String tbaa(final Environment.CoolAttribute a) {
+		return tbaa(a.parent.name + "." + a.name);
+	}
+	
+	// The payload fields of the builtin Int, Bool and String objects
+	private String tbaa(final Environment.CoolClass cls, final int field) {
+		return tbaa(cls.name + "." + field);
+	}
+	
+	private String tbaa(final String name) {
+		String node = tbaaTypes.get(name);
+		if (node == null) {
+			node = "!" + metadataNodes++;
+			tbaaTypes.put(name, node);
+			metadata.append(node).append(" = metadata !{metadata !\"").append(
+					name).append("\", metadata ").append(TBAA_ROOT).append(
+					"}\n");
+		}
+		return node;
+	}
+	
+	// The size of an instance of cls in bytes, as an i64
+	private Register instanceSize(final Environment.CoolClass cls) {
+		final String type = cls.getInternalInstanceName() + "*";
+		final Register end = nextRegister(type);
+		final Register size = nextRegister("i64");
+		output.append("\t").append(end.name).append(" = getelementptr ")
+				.append(end.type).append(" null, i32 1\n");
+		output.append("\t").append(size.name).append(" = ptrtoint ").append(
+				type).append(" ").append(end.name).append(" to ").append(
+				size.type).append("\n");
+		return size;
+	}
+	
+	private Register malloc(final Environment.CoolClass cls) {
+		return malloc(cls, instanceSize(cls));
+	}
+	
+	/*
+	 * Allocate an instance of cls on the heap; in an allocation-profiling
+	 * build, through the runtime, which counts it against its site and
+	 * class.
+	 */
+	private Register malloc(final Environment.CoolClass cls,
+			final Register size) {
+		final String type = cls.getInternalInstanceName() + "*";
 		final Register call = nextRegister("i8 *");
-		output.append("\t").append(call.name).append(
-				" = call noalias i8* @GC_malloc(i64 ").append(cast.name)
-				.append(")\n");
+		if (allocationProfileFile != null) {
+			output.append("\t").append(call.name).append(
+					" = call noalias i8* @cool_profile_alloc(i64 ").append(
+					size.name).append(", i32 ").append(allocationSite(cls))
+					.append(", i8* bitcast (").append(
+							cls.getInternalClassName()).append("* ").append(
+							cls.getInternalDescriptorName()).append(
+							" to i8*))\n");
+		} else {
+			output.append("\t").append(call.name).append(
+					" = call noalias i8* @GC_malloc(i64 ").append(size.name)
+					.append(")\n");
+		}
 		
 		final Register cast2 = nextRegister(type);
 		output.append("\t").append(cast2.name).append(" = bitcast ").append(
 				call.typeAndName()).append(" to ").append(cast2.type).append(
 				"\n");
 		
-		output.append("\tstore ").append(cast2.typeAndName()).append(", ")
-				.append(r.type).append(" ").append(r.name).append("\n");
-		return r;
+		return cast2;
 	}
 	
-	private void log(final String msg) {
-		if (debug) {
-			System.err.println(msg);
+	private int allocationSite(final Environment.CoolClass cls) {
+		String name = allocationContext + ": new " + cls.name;
+		final Integer seen = allocationSiteNames.get(name);
+		allocationSiteNames.put(name, seen == null ? 1 : seen + 1);
+		if (seen != null) {
+			name += " #" + (seen + 1);
 		}
+		allocationSites.add(name);
+		return allocationSites.size() - 1;
 	}
 	
 }
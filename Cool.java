@@ -4,6 +4,9 @@
  */
 
 import java.io.FileReader;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import java_cup.runtime.Symbol;
 
@@ -20,17 +23,30 @@ public class Cool {
 	// Internal state
 	protected ErrorReport report;
 	
-	private static final String PARSE_DEBUG_OPTION = "dp";
-	private static final String TYPECHECK_DEBUG_OPTION = "dt";
-	private static final String CODEGEN_DEBUG_OPTION = "dc";
+	private static final String TRACE_OPTION = "trace";
+	private static final String TRACE_FILE_OPTION = "tracefile";
 	private static final String PRINT_TREE_OPTION = "t";
 	private static final String SHOW_GENERATED_CODE = "s";
+	private static final String OPT_LEVEL_OPTION = "O";
+	private static final String OUTPUT_OPTION = "o";
+	private static final String STATS_OPTION = "stats";
+	private static final String PROFILE_OPTION = "profile";
+	private static final String PROFILE_ALLOC_OPTION = "profile-alloc";
+	private static final String PROFILE_USE_OPTION = "profile-use";
 	
-	protected boolean debugParser = false; // True => parse in debug mode
-	protected boolean debugTypeChecker = false;
-	protected boolean debugCodegen = false;
 	protected boolean printTree = false;
 	protected boolean showCode = false;
+	protected int optLevel = 2;
+	
+	// Name of the executable to build, or null to write LLVM code to stdout
+	protected String outputName = null;
+	protected boolean showStats = false;
+	protected boolean profile = false;
+	protected boolean profileAllocations = false;
+	
+	// Profile from a -profile build of the same program to optimize for
+	protected String profileUse = null;
+	protected final Map<String, Object> stats = new LinkedHashMap<String, Object>();
 	
 	static public void main(final String args[]) {
 		final Cool cool = new Cool();
@@ -40,31 +56,61 @@ public class Cool {
 	public void go(final String[] args) {
 		report = new ErrorReport();
 		parseCommandLine(args);
+		stats.put("opt.level", "-O" + optLevel);
 		parseProgram();
+		printStats();
+		Trace.close();
 	}
 	
 	protected void parseCommandLine(final String args[]) {
 		try {
 			// Comman line parsing
 			final Options options = new Options();
-			options.addOption(PARSE_DEBUG_OPTION, false,
-					"parser debug mode (trace parse states)");
+			options.addOption(TRACE_OPTION, true,
+					"trace compiler phases, e.g. typecheck,codegen:info "
+							+ "(scanner, parser, hierarchy, typecheck, "
+							+ "codegen or all; levels info or debug)");
+			options.addOption(TRACE_FILE_OPTION, true,
+					"write trace events to this file instead of stderr");
 			options.addOption(PRINT_TREE_OPTION, false,
 					"output abstract syntax tree in graphviz format");
-			options.addOption(TYPECHECK_DEBUG_OPTION, false,
-					"typechecker debug mode");
-			options.addOption(CODEGEN_DEBUG_OPTION, false,
-					"code generator debug mode");
 			options
 					.addOption(SHOW_GENERATED_CODE, false,
 							"show generated code");
+			options.addOption(OPT_LEVEL_OPTION, true,
+					"optimization level 0-3 for the build (default 2)");
+			options.addOption(OUTPUT_OPTION, true,
+					"build a native executable with this name");
+			options.addOption(STATS_OPTION, false,
+					"print compilation statistics");
+			options.addOption(PROFILE_OPTION, false,
+					"instrument the program to count and time method calls");
+			options.addOption(null, PROFILE_ALLOC_OPTION, false,
+					"instrument the program to count allocations by site "
+							+ "and class, and live objects at exit");
+			options.addOption(null, PROFILE_USE_OPTION, true,
+					"optimize for the profile written by a -profile build");
 			final CommandLineParser cliParser = new GnuParser();
 			final CommandLine cmd = cliParser.parse(options, args);
-			debugParser = cmd.hasOption(PARSE_DEBUG_OPTION);
+			if (cmd.hasOption(TRACE_OPTION)) {
+				Trace.configure(cmd.getOptionValue(TRACE_OPTION), cmd
+						.getOptionValue(TRACE_FILE_OPTION));
+			}
 			printTree = cmd.hasOption(PRINT_TREE_OPTION);
-			debugTypeChecker = cmd.hasOption(TYPECHECK_DEBUG_OPTION);
-			debugCodegen = cmd.hasOption(CODEGEN_DEBUG_OPTION);
 			showCode = cmd.hasOption(SHOW_GENERATED_CODE);
+			if (cmd.hasOption(OPT_LEVEL_OPTION)) {
+				optLevel = Integer.parseInt(cmd.getOptionValue(OPT_LEVEL_OPTION));
+				if (optLevel < 0 || optLevel > Toolchain.MAX_LEVEL) {
+					report.err("Optimization level must be 0 to "
+							+ Toolchain.MAX_LEVEL);
+					System.exit(1);
+				}
+			}
+			outputName = cmd.getOptionValue(OUTPUT_OPTION);
+			showStats = cmd.hasOption(STATS_OPTION);
+			profile = cmd.hasOption(PROFILE_OPTION);
+			profileAllocations = cmd.hasOption(PROFILE_ALLOC_OPTION);
+			profileUse = cmd.getOptionValue(PROFILE_USE_OPTION);
 			final String[] remaining = cmd.getArgs();
 			final int argc = remaining.length;
 			if (argc == 0) {
@@ -90,36 +136,71 @@ public class Cool {
 					sourceFile));
 			final parser p = new parser(scanner);
 			p.setErrorReport(report);
+			long start = System.currentTimeMillis();
 			Symbol result;
-			if (debugParser) {
-				System.err.println("Parsing in debug mode...");
+			if (Trace.PARSER.on(Trace.Level.DEBUG)) {
+				Trace.PARSER.debug("Parsing in debug mode...");
 				result = p.debug_parse();
 			} else {
 				result = p.parse();
 			}
 			System.err.println("Done parsing");
+			stats.put("time.parse", (System.currentTimeMillis() - start)
+					+ " ms");
 			final ASTnode tree = (ASTnode) result.value;
 			if (tree == null) {
 				System.err.println("*** Parsing failed!");
 				System.exit(3);
 			}
 			System.err.println("Beginning typecheck...");
-			final TypeChecker typeChecker = new TypeChecker(tree,
-					debugTypeChecker);
+			start = System.currentTimeMillis();
+			final TypeChecker typeChecker = new TypeChecker(tree);
 			if (typeChecker.typecheck()) {
 				System.err.println("Done typechecking");
+				stats.put("time.typecheck", (System.currentTimeMillis() - start)
+						+ " ms");
 				if (printTree) {
 					tree.dump();
 				} else {
 					System.err.println("Beginning code generation...");
+					start = System.currentTimeMillis();
 					final CodeGenerator codeGenerator = new CodeGenerator(
-							typeChecker.getEnvironment(), debugCodegen);
+							typeChecker.getEnvironment());
+					final String base = outputName != null ? outputName
+							: "cool";
+					if (profile) {
+						codeGenerator.setProfile(base + ".prof");
+					}
+					if (profileAllocations) {
+						codeGenerator.setAllocationProfile(base + ".alloc");
+					}
+					if (profileUse != null) {
+						try {
+							codeGenerator.setProfileData(ProfileData
+									.read(profileUse));
+						} catch (final IOException e) {
+							report.err("Cannot read profile: " + e.getMessage());
+							System.exit(1);
+						}
+					}
 					final String code = codeGenerator.generateCode();
+					if (code == null) {
+						System.exit(5);
+					}
 					System.err.println("Done generating code\n\n");
-					System.out.println(code);
+					stats.put("time.codegen", (System.currentTimeMillis() - start)
+							+ " ms");
+					stats.put("code.bytes", code.length());
 					if (showCode) {
 						System.err.println(code);
 					}
+					if (outputName == null) {
+						System.out.println(code);
+					} else if (!new Toolchain(optLevel, outputName, stats)
+							.build(code)) {
+						printStats();
+						System.exit(4);
+					}
 				}
 			} else {
 				System.exit(2);
@@ -130,4 +211,13 @@ public class Cool {
 			System.exit(1);
 		}
 	}
+	
+	protected void printStats() {
+		if (showStats) {
+			for (final Map.Entry<String, Object> e : stats.entrySet()) {
+				System.err.println(String.format("%-16s %s", e.getKey(), e
+						.getValue()));
+			}
+		}
+	}
 }
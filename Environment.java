@@ -1,6 +1,7 @@
 import java.text.MessageFormat;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -12,6 +13,8 @@ public class Environment {
 		public ASTnode node;
 		public CoolClass parent;
 		
+		// Field offset within the instance (for attributes) or position in
+		// the argument list (for method arguments)
 		public int index = -1;
 		
 		public CoolAttribute(final String name, final CoolClass type) {
@@ -28,14 +31,28 @@ public class Environment {
 	public static class CoolClass {
 		public String name;
 		public CoolClass parent;
-		public HashMap<String, CoolMethod> methods = new HashMap<String, CoolMethod>();
-		public List<CoolMethod> methodList = new LinkedList<CoolMethod>();
-		public HashMap<String, CoolAttribute> attributes = new HashMap<String, CoolAttribute>();
-		public List<CoolAttribute> attrList = new LinkedList<CoolAttribute>();
+		// Features declared in this class, in declaration order
+		public HashMap<String, CoolMethod> methods = new LinkedHashMap<String, CoolMethod>();
+		public HashMap<String, CoolAttribute> attributes = new LinkedHashMap<String, CoolAttribute>();
 		public ASTnode node;
 		public boolean builtin = false;
-		public boolean attrInheritDone = false;
-		public boolean methodInheritDone = false;
+		public int classId = -1;
+		
+		// LLVM type of an unboxed value of this class (Int and Bool only)
+		public String unboxedType = null;
+		
+		// Frozen once inheritance has been resolved: every attribute of an
+		// instance in field order (inherited ones first), the vtable (a
+		// prefix extension of the parent's), and every method and attribute
+		// visible in this class by name
+		public CoolAttribute[] attrTable = null;
+		public CoolMethod[] methodTable = null;
+		public HashMap<String, CoolAttribute> visibleAttributes = null;
+		public HashMap<String, CoolMethod> visibleMethods = null;
+		
+		// For each vtable slot, the one method a receiver whose static type
+		// is this class can dispatch to, or null if subclasses override it
+		public CoolMethod[] monomorphic = null;
 		
 		public CoolClass(final String name) {
 			this(name, null);
@@ -62,6 +79,18 @@ public class Environment {
 		public String getInternalDescriptorName() {
 			return "@_" + name;
 		}
+		
+		/*
+		 * The type generated code uses for a value whose static type is this
+		 * class: the raw value for Int and Bool, an instance pointer
+		 * otherwise.
+		 */
+		public String getInternalValueType() {
+			if (unboxedType != null) {
+				return unboxedType;
+			}
+			return getInternalInstanceName() + "*";
+		}
 	}
 	
 	public static class CoolMethod {
@@ -72,7 +101,10 @@ public class Environment {
 		public CoolClass parent;
 		public String builtinImplementation = null;
 		
+		// Position in the vtable, and the method that introduced that slot
+		// (this method itself unless it overrides one)
 		public int index = -1;
+		public CoolMethod origin = null;
 		
 		public CoolMethod(final String name, final CoolClass type) {
 			this.name = name;
@@ -81,18 +113,30 @@ public class Environment {
 		
 		public String getInternalType() {
 			final StringBuilder sb = new StringBuilder();
-			sb.append(type.getInternalInstanceName());
-			sb.append("* (").append(parent.getInternalInstanceName()).append(
+			sb.append(type.getInternalValueType());
+			sb.append(" (").append(parent.getInternalInstanceName()).append(
 					" *");
 			for (final CoolAttribute arg : arguments) {
 				sb.append(", ");
-				sb.append(arg.type.getInternalInstanceName());
-				sb.append("* ");
+				sb.append(arg.type.getInternalValueType());
 			}
 			sb.append(") *");
 			return sb.toString();
 		}
 		
+		/*
+		 * The type of this method's vtable slot. It is fixed by the method
+		 * that introduced the slot, so the slot has the same type in every
+		 * descriptor that contains it.
+		 */
+		public String getInternalSlotType() {
+			return origin.getInternalType();
+		}
+		
+		public boolean hasImplementation() {
+			return !parent.builtin || builtinImplementation != null;
+		}
+		
 		public String getInternalName() {
 			return "@__method_" + parent + "_" + name;
 		}
@@ -135,22 +179,17 @@ public class Environment {
 		}
 	}
 	
-	public boolean debug;
-	
 	public HashMap<String, CoolClass> classes = new HashMap<String, CoolClass>();
 	
-	public HashStack<String, CoolClass> localTypes = new HashStack<String, CoolClass>();
-	public HashStack<String, CodeGenerator.Register> registers = new HashStack<String, CodeGenerator.Register>();
+	// Built by indexHierarchy() once the hierarchy is known to be a tree
+	public ClassHierarchy hierarchy = null;
 	
-	public Environment() throws EnvironmentException {
-		this(false);
-	}
+	public ScopedTable<CoolClass> localTypes = new ScopedTable<CoolClass>();
+	public ScopedTable<CodeGenerator.Register> registers = new ScopedTable<CodeGenerator.Register>();
 	
-	public Environment(final boolean debug) throws EnvironmentException {
-		
-		this.debug = debug;
+	public Environment() throws EnvironmentException {
 		
-		log("Setting up default environment...");
+		Trace.HIERARCHY.debug("Setting up default environment...");
 		// Set up default classes
 		final CoolClass object = new CoolClass("Object");
 		object.parent = object;
@@ -165,6 +204,9 @@ public class Environment {
 		stringClass.builtin = true;
 		boolClass.builtin = true;
 		
+		intClass.unboxedType = "i32";
+		boolClass.unboxedType = "i1";
+		
 		addClass(object);
 		addClass(ioClass);
 		addClass(intClass);
@@ -213,25 +255,42 @@ public class Environment {
 		
 		// Bool has no built-in method
 		
-		outString.builtinImplementation = "\t%v1.addr = alloca %__instance_String *\n"
-				+ "\tstore %__instance_String * %v1, %__instance_String ** %v1.addr\n"
-				+ "\t%tmp = load %__instance_String** %v1.addr\n"
-				+ "\t%tmp1 = getelementptr inbounds %__instance_String * %tmp, i32 0, i32 2\n"
-				+ "\t%tmp2 = load i8** %tmp1\n"
-				+ "\t%call = call i32 (i8*, ...)* @printf(i8* getelementptr inbounds ([3 x i8]* @str.format, i32 0, i32 0), i8* %tmp2)\n"
+		// All but length are wrappers around the C runtime
+		// (runtime/cool_runtime.c), which uses the C calling convention
+		abort.builtinImplementation = "\tcall void @cool_abort(%__instance_Object * %this)\n"
+				+ "\tunreachable";
+		
+		typeName.builtinImplementation = "\t%name = call %__instance_String * @cool_type_name(%__instance_Object * %this)\n"
+				+ "\tret %__instance_String * %name";
+		
+		copy.builtinImplementation = "\t%copy = call %__instance_Object * @cool_copy(%__instance_Object * %this)\n"
+				+ "\tret %__instance_Object * %copy";
+		
+		length.builtinImplementation = "\t%length.ptr = getelementptr inbounds %__instance_String * %this, i32 0, i32 1\n"
+				+ "\t%length = load i32* %length.ptr\n"
+				+ "\tret i32 %length";
+		
+		concat.builtinImplementation = "\t%result = call %__instance_String * @cool_concat(%__instance_String * %this, %__instance_String * %v1)\n"
+				+ "\tret %__instance_String * %result";
+		
+		substr.builtinImplementation = "\t%result = call %__instance_String * @cool_substr(%__instance_String * %this, i32 %v1, i32 %v2)\n"
+				+ "\tret %__instance_String * %result";
+		
+		outString.builtinImplementation = "\tcall void @cool_out_string(%__instance_String * %v1)\n"
 				+ "\t%retval = bitcast %__instance_IO * %this to %__instance_Object *\n"
 				+ "\tret %__instance_Object * %retval";
 		
-		outInt.builtinImplementation = "\t%v1.addr = alloca %__instance_Int *\n"
-				+ "\tstore %__instance_Int * %v1, %__instance_Int ** %v1.addr\n"
-				+ "\t%tmp = load %__instance_Int** %v1.addr\n"
-				+ "\t%tmp1 = getelementptr inbounds %__instance_Int * %tmp, i32 0, i32 1\n"
-				+ "\t%tmp2 = load i32* %tmp1\n"
-				+ "\t%call = call i32 (i8*, ...)* @printf(i8* getelementptr inbounds ([3 x i8]* @str.format2, i32 0, i32 0), i32 %tmp2)\n"
+		inString.builtinImplementation = "\t%result = call %__instance_String * @cool_in_string(%__class_String * @_String)\n"
+				+ "\tret %__instance_String * %result";
+		
+		inInt.builtinImplementation = "\t%result = call i32 @cool_in_int()\n"
+				+ "\tret i32 %result";
+		
+		outInt.builtinImplementation = "\tcall void @cool_out_int(i32 %v1)\n"
 				+ "\t%retval = bitcast %__instance_IO * %this to %__instance_Object *\n"
 				+ "\tret %__instance_Object * %retval";
 		
-		log("Done setting up default environment");
+		Trace.HIERARCHY.debug("Done setting up default environment");
 		
 	}
 	
@@ -245,7 +304,7 @@ public class Environment {
 									m, c));
 		}
 		CoolClass parent = c.parent;
-		while (parent != getClass("Object")) {
+		for (int d = depthBelowObject(c); d > 1; --d) {
 			if (parent.attributes.containsKey(m.name)) {
 				throw new EnvironmentException(
 						MessageFormat
@@ -255,7 +314,7 @@ public class Environment {
 			}
 			parent = parent.parent;
 		}
-		log(MessageFormat.format("Adding attribute {0} to class {1}", m, c));
+		Trace.HIERARCHY.debug("Adding attribute {0} to class {1}", m, c);
 		m.parent = c;
 		c.attributes.put(m.name, m);
 	}
@@ -265,7 +324,7 @@ public class Environment {
 			throw new EnvironmentException(MessageFormat.format(
 					"Attempting to define class already defined: {0}", c));
 		}
-		log(MessageFormat.format("Adding class {0}", c));
+		Trace.HIERARCHY.debug("Adding class {0}", c);
 		classes.put(c.name, c);
 	}
 	
@@ -286,7 +345,7 @@ public class Environment {
 		}
 		
 		CoolClass parent = c.parent;
-		while (parent != getClass("Object")) {
+		for (int d = depthBelowObject(c); d > 1; --d) {
 			if (parent.methods.containsKey(m.name)) {
 				final CoolMethod m2 = parent.methods.get(m.name);
 				if (m.arguments.size() != m2.arguments.size()) {
@@ -312,12 +371,32 @@ public class Environment {
 			}
 			parent = parent.parent;
 		}
-		log(MessageFormat.format("Adding method {0} to class {1} ({2})", m, c,
-				m.getName()));
+		Trace.HIERARCHY.debug("Adding method {0} to class {1}", m, c);
 		m.parent = c;
 		c.methods.put(m.name, m);
 	}
 	
+	/*
+	 * Number the classes and build the subtype/common-ancestor index. Must be
+	 * called once every class has its parent set and the hierarchy has been
+	 * checked for cycles.
+	 */
+	public void indexHierarchy() throws EnvironmentException {
+		Trace.HIERARCHY.debug("Indexing class hierarchy...");
+		hierarchy = new ClassHierarchy(this);
+	}
+	
+	/*
+	 * Before the hierarchy is indexed only the builtin classes exist, and
+	 * they all inherit directly from Object.
+	 */
+	protected int depthBelowObject(final CoolClass c) {
+		if (hierarchy == null) {
+			return 1;
+		}
+		return hierarchy.depth(c);
+	}
+	
 	public CoolClass getClass(final String name) throws EnvironmentException {
 		final CoolClass result = classes.get(name);
 		if (result == null) {
@@ -327,69 +406,38 @@ public class Environment {
 		return result;
 	}
 	
-	public Environment.CoolMethod lookupMethod(Environment.CoolClass cls,
+	/*
+	 * Method and attribute lookups use the per-class tables built once
+	 * inheritance has been resolved, so they cost one probe regardless of
+	 * where in the hierarchy the feature was declared.
+	 */
+	public Environment.CoolMethod lookupMethod(final Environment.CoolClass cls,
 			final String id) throws EnvironmentException {
-		Environment.CoolMethod result = cls.methods.get(id);
-		final CoolClass OBJECT = getClass("Object");
-		while (result == null && cls != OBJECT) {
-			log(MessageFormat.format("Method {2} not found in {0}; trying {1}",
-					cls, cls.parent, id));
-			cls = cls.parent;
-			result = cls.methods.get(id);
-		}
-		if (result == null) {
-			log(MessageFormat.format("Method {0} not found", id));
-		} else {
-			log(MessageFormat.format("Method {0} found in {1}", id, cls));
-		}
-		return result;
+		return cls.visibleMethods.get(id);
 	}
 	
-	public Environment.CoolClass lookupAttrType(Environment.CoolClass cls,
-			final String id) throws EnvironmentException {
-		final CoolClass OBJECT = getClass("Object");
-		if (id.equals("self")) {
-			log(MessageFormat.format("SELF is of type {0}", cls));
-			return cls;
-		}
-		log(MessageFormat.format(
-				"Looking up attribute {0} in local environment", id));
-		Environment.CoolClass result = localTypes.get(id);
-		if (result == null) {
-			log(MessageFormat.format(
-					"Looking up attribute {0} in current class {1}", id, cls));
-			if (cls.attributes.get(id) != null) {
-				result = cls.attributes.get(id).type;
-			}
-		} else {
-			log(MessageFormat.format(
-					"Attribute {0} found in local environment: ", id, result));
-			return result;
-		}
-		while (result == null && cls != OBJECT) {
-			cls = cls.parent;
-			log(MessageFormat.format("Looking up attribute {0} in class {1}",
-					id, cls));
-			if (cls.attributes.get(id) != null) {
-				result = cls.attributes.get(id).type;
-			}
-		}
+	public Environment.CoolAttribute lookupAttribute(
+			final Environment.CoolClass cls, final String id)
+			throws EnvironmentException {
+		final Environment.CoolAttribute result = cls.visibleAttributes.get(id);
 		if (result == null) {
-			log(MessageFormat.format("Attribute {0} not found", id));
 			throw new EnvironmentException(MessageFormat.format(
 					"Attribute {0} referenced but not defined", id));
-		} else {
-			log(MessageFormat.format("Attribute {0} found in class {1}: {2}",
-					id, cls, result));
 		}
-		
 		return result;
 	}
 	
-	protected void log(final String msg) {
-		if (debug) {
-			System.err.println(msg);
+	public Environment.CoolClass lookupAttrType(
+			final Environment.CoolClass cls, final String id)
+			throws EnvironmentException {
+		if (id.equals("self")) {
+			return cls;
+		}
+		final Environment.CoolClass result = localTypes.get(id);
+		if (result != null) {
+			return result;
 		}
+		return lookupAttribute(cls, id).type;
 	}
 	
 }
@@ -0,0 +1,297 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Intraprocedural escape analysis over the typed AST, deciding which NEW
+ * expressions may allocate their object in the stack frame of the method
+ * evaluating them instead of on the garbage-collected heap.
+ *
+ * An object does not escape if it is only ever held by the let variable it
+ * initializes (or by no variable at all), and that variable is only used as
+ * a dispatch receiver, compared or tested with isvoid. A receiver is safe
+ * when the call is direct (see CodeGenerator.findMonomorphicSlots) and the
+ * callee does not leak self; whether each method leaks self is found by
+ * iterating to a fixed point over all methods, starting from the optimistic
+ * assumption that none does. Objects whose attribute initializers leak
+ * self always go on the heap.
+ *
+ * Only one object per NEW expression is live at a time, so a single stack
+ * slot in the entry block serves for all evaluations of it.
+ */
+public class EscapeAnalysis {
+	
+	// The builtins never keep self (the runtime at most reads or copies
+	// it), but these return it
+	private static final String[] RETURNS_SELF = { "out_string", "out_int" };
+	
+	protected final Environment env;
+	
+	// Methods in which self may escape whether or not the call's result is
+	// used, and those in which it escapes at least through the result
+	protected final HashSet<Environment.CoolMethod> leaksSelf = new HashSet<Environment.CoolMethod>();
+	protected final HashSet<Environment.CoolMethod> returnsSelf = new HashSet<Environment.CoolMethod>();
+	
+	protected final HashSet<Environment.CoolClass> initLeaksSelf = new HashSet<Environment.CoolClass>();
+	
+	// NEW expressions seen in a non-escaping and in an escaping position
+	protected final HashSet<ASTnode> local = new HashSet<ASTnode>();
+	protected final HashSet<ASTnode> escaping = new HashSet<ASTnode>();
+	
+	// Whether the variable bound by a let introduction escapes its scope
+	protected final IdentityHashMap<ASTnode, Boolean> letVarEscapes = new IdentityHashMap<ASTnode, Boolean>();
+	
+	public EscapeAnalysis(final Environment env)
+			throws Environment.EnvironmentException {
+		this.env = env;
+		
+		for (int id = 0; id < env.hierarchy.size(); ++id) {
+			final Environment.CoolClass c = env.hierarchy.byId(id);
+			for (final Environment.CoolMethod m : c.methods.values()) {
+				if (m.node == null && isReturnsSelfBuiltin(m)) {
+					returnsSelf.add(m);
+				}
+			}
+		}
+		
+		boolean changed = true;
+		int rounds = 0;
+		while (changed) {
+			changed = false;
+			++rounds;
+			letVarEscapes.clear();
+			for (int id = 0; id < env.hierarchy.size(); ++id) {
+				final Environment.CoolClass c = env.hierarchy.byId(id);
+				for (final Environment.CoolMethod m : c.methods.values()) {
+					if (m.node == null) {
+						continue;
+					}
+					if (!leaksSelf.contains(m)
+							&& escapes(c, m.node.right, "self", false)) {
+						leaksSelf.add(m);
+						changed = true;
+					}
+					if (!returnsSelf.contains(m)
+							&& escapes(c, m.node.right, "self", true)) {
+						returnsSelf.add(m);
+						changed = true;
+					}
+				}
+			}
+		}
+		
+		// Final pass with the leak sets settled: classify every NEW
+		letVarEscapes.clear();
+		local.clear();
+		escaping.clear();
+		for (int id = 0; id < env.hierarchy.size(); ++id) {
+			final Environment.CoolClass c = env.hierarchy.byId(id);
+			for (final Environment.CoolMethod m : c.methods.values()) {
+				if (m.node != null) {
+					escapes(c, m.node.right, null, true);
+				}
+			}
+			for (final Environment.CoolAttribute a : c.attrTable) {
+				if (a.node.right != null
+						&& escapes(a.parent, a.node.right, "self", true)) {
+					initLeaksSelf.add(c);
+				}
+			}
+		}
+		Trace.CODEGEN.info("Escape analysis settled after {0} rounds", rounds);
+	}
+	
+	/**
+	 * True if the object created by this NEW expression can live in the
+	 * stack frame of the method evaluating it.
+	 */
+	public boolean isStackAllocated(final ASTnode n)
+			throws Environment.EnvironmentException {
+		return local.contains(n) && !escaping.contains(n)
+				&& !initLeaksSelf.contains(env.getClass((String) n.value));
+	}
+	
+	private static boolean isReturnsSelfBuiltin(final Environment.CoolMethod m) {
+		if (m.builtinImplementation == null) {
+			return false;
+		}
+		for (final String name : RETURNS_SELF) {
+			if (name.equals(m.name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/*
+	 * Whether the object held by var may escape while n is evaluated, given
+	 * whether n's own value escapes. var is null when only classifying the
+	 * NEW expressions inside n. Subexpressions are combined with | rather
+	 * than || so that every NEW is visited.
+	 */
+	private boolean escapes(final Environment.CoolClass cls, final ASTnode n,
+			final String var, final boolean resultEscapes)
+			throws Environment.EnvironmentException {
+		if (n == null) {
+			return false;
+		}
+		switch (n.kind) {
+		case sym.TRUE:
+		case sym.FALSE:
+		case sym.INTLIT:
+		case sym.STRINGLIT:
+			return false;
+		
+		case sym.ID:
+			return resultEscapes && n.value.equals(var);
+		
+		case sym.NEW:
+			(resultEscapes ? escaping : local).add(n);
+			return false;
+		
+		case sym.ASSIGN:
+			return escapes(cls, n.right, var, true);
+		
+		case sym.SEMI:
+			return escapes(cls, n.left, var, resultEscapes && n.right == null)
+					| escapes(cls, n.right, var, resultEscapes);
+		
+		case sym.IF:
+			return escapes(cls, n.left, var, false)
+					| escapes(cls, n.center, var, resultEscapes)
+					| escapes(cls, n.right, var, resultEscapes);
+		
+		case sym.WHILE:
+			return escapes(cls, n.left, var, false)
+					| escapes(cls, n.right, var, false);
+		
+		case sym.ISVOID:
+		case sym.NOT:
+		case sym.NEG:
+			return escapes(cls, n.left, var, false);
+		
+		case sym.LT:
+		case sym.LEQ:
+		case sym.EQ:
+		case sym.PLUS:
+		case sym.MINUS:
+		case sym.TIMES:
+		case sym.DIV:
+			return escapes(cls, n.left, var, false)
+					| escapes(cls, n.right, var, false);
+		
+		case sym.COMMA:
+			// Actual arguments
+			return escapes(cls, n.left, var, true)
+					| escapes(cls, n.right, var, true);
+		
+		case sym.DOT: {
+			final boolean receiverEscapes = receiverEscapes(cls, n,
+					resultEscapes);
+			final boolean args = escapes(cls, n.right, var, true);
+			if (n.left == null) {
+				return args | (receiverEscapes && "self".equals(var));
+			}
+			return args | escapes(cls, n.left, var, receiverEscapes);
+		}
+		
+		case sym.LET: {
+			final List<ASTnode> intros = new ArrayList<ASTnode>();
+			flattenIntroductions(n.left, intros);
+			return escapesInLet(cls, intros, 0, n.right, var, resultEscapes);
+		}
+		
+		default:
+			// CASE and anything else: any mention of var may escape, and the
+			// NEW expressions inside stay on the heap
+			return mentions(n, var);
+		}
+	}
+	
+	/*
+	 * Escape of var through the let introductions from index first on and
+	 * the let body, which are the scope of introduction first - 1.
+	 */
+	private boolean escapesInLet(final Environment.CoolClass cls,
+			final List<ASTnode> intros, final int first, final ASTnode body,
+			String var, final boolean resultEscapes)
+			throws Environment.EnvironmentException {
+		boolean escaped = false;
+		for (int i = first; i < intros.size(); ++i) {
+			final ASTnode intro = intros.get(i);
+			final String name = (String) intro.left.left.value;
+			if (intro.right != null) {
+				boolean initEscapes = true;
+				if (intro.right.kind == sym.NEW) {
+					Boolean e = letVarEscapes.get(intro);
+					if (e == null) {
+						e = escapesInLet(cls, intros, i + 1, body, name,
+								resultEscapes);
+						letVarEscapes.put(intro, e);
+					}
+					initEscapes = e;
+				}
+				escaped |= escapes(cls, intro.right, var, initEscapes);
+			}
+			if (name.equals(var)) {
+				// Shadowed for the rest of the scope
+				var = null;
+			}
+		}
+		return escaped | escapes(cls, body, var, resultEscapes);
+	}
+	
+	/*
+	 * The receiver of a dispatch escapes unless the call is direct and the
+	 * callee keeps self at most as its result, which is then unused.
+	 */
+	private boolean receiverEscapes(final Environment.CoolClass cls,
+			final ASTnode n, final boolean resultEscapes)
+			throws Environment.EnvironmentException {
+		Environment.CoolClass curClass = cls;
+		if (n.left != null) {
+			curClass = n.left.type;
+		}
+		if (n.center != null) {
+			curClass = env.getClass((String) n.center.value);
+		}
+		if (curClass == null) {
+			return true;
+		}
+		final Environment.CoolMethod method = env.lookupMethod(curClass,
+				(String) n.value);
+		if (method == null) {
+			return true;
+		}
+		final Environment.CoolMethod target = n.center != null ? method
+				: curClass.monomorphic[method.index];
+		if (target == null || !target.hasImplementation()) {
+			return true;
+		}
+		return leaksSelf.contains(target)
+				|| (resultEscapes && returnsSelf.contains(target));
+	}
+	
+	private static void flattenIntroductions(final ASTnode n,
+			final List<ASTnode> intros) {
+		if (n.kind == sym.COMMA) {
+			flattenIntroductions(n.left, intros);
+			flattenIntroductions(n.right, intros);
+		} else {
+			intros.add(n);
+		}
+	}
+	
+	private static boolean mentions(final ASTnode n, final String var) {
+		if (n == null || var == null) {
+			return false;
+		}
+		if (n.kind == sym.ID && var.equals(n.value)) {
+			return true;
+		}
+		return mentions(n.left, var) || mentions(n.center, var)
+				|| mentions(n.right, var);
+	}
+	
+}
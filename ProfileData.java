@@ -0,0 +1,115 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A profile written by a program built with -profile, read back for
+ * -profile-use. Besides its report, the program writes one line per
+ * counter:
+ *
+ * method calls Class.method
+ * branch site true false
+ * receiver site classId count
+ *
+ * Branch sites (the conditions of if and while) and dispatch sites (calls
+ * through the vtable) are numbered in the order the code generator emits
+ * them, and receivers are identified by class ID, so a profile only
+ * applies to the program it was collected from.
+ */
+public class ProfileData {
+	
+	protected final HashMap<String, Long> calls = new HashMap<String, Long>();
+	protected final HashMap<Integer, long[]> branches = new HashMap<Integer, long[]>();
+	protected final HashMap<Integer, HashMap<Integer, Long>> receivers = new HashMap<Integer, HashMap<Integer, Long>>();
+	
+	public static ProfileData read(final String file) throws IOException {
+		final ProfileData data = new ProfileData();
+		final BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				final String[] words = line.trim().split("\\s+");
+				if (words[0].equals("method") && words.length == 3) {
+					data.calls.put(words[2], Long.parseLong(words[1]));
+				} else if (words[0].equals("branch") && words.length == 4) {
+					data.branches.put(Integer.parseInt(words[1]), new long[] {
+							Long.parseLong(words[2]), Long.parseLong(words[3]) });
+				} else if (words[0].equals("receiver") && words.length == 4) {
+					final int site = Integer.parseInt(words[1]);
+					HashMap<Integer, Long> counts = data.receivers.get(site);
+					if (counts == null) {
+						counts = new HashMap<Integer, Long>();
+						data.receivers.put(site, counts);
+					}
+					counts.put(Integer.parseInt(words[2]), Long
+							.parseLong(words[3]));
+				}
+			}
+		} catch (final NumberFormatException e) {
+			throw new IOException("Malformed profile " + file + ": "
+					+ e.getMessage());
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+	
+	/**
+	 * Calls to a method, or -1 if the profile does not mention it.
+	 */
+	public long calls(final Environment.CoolMethod m) {
+		final Long n = calls.get(m.parent.name + "." + m.name);
+		return n == null ? -1 : n;
+	}
+	
+	/**
+	 * How often a branch site's condition was true and false, or null if it
+	 * was never reached.
+	 */
+	public long[] branch(final int site) {
+		final long[] counts = branches.get(site);
+		return counts == null || counts[0] + counts[1] == 0 ? null : counts;
+	}
+	
+	/**
+	 * The ID of the class of the receiver at a dispatch site, if at least
+	 * share of at least minCalls calls there had a receiver of that exact
+	 * class; -1 otherwise.
+	 */
+	public int dominantReceiver(final int site, final double share,
+			final long minCalls) {
+		final HashMap<Integer, Long> counts = receivers.get(site);
+		if (counts == null) {
+			return -1;
+		}
+		long total = 0;
+		int best = -1;
+		for (final Map.Entry<Integer, Long> e : counts.entrySet()) {
+			total += e.getValue();
+			if (best < 0 || e.getValue() > counts.get(best)) {
+				best = e.getKey();
+			}
+		}
+		if (total < minCalls || counts.get(best) < share * total) {
+			return -1;
+		}
+		return best;
+	}
+	
+	/**
+	 * Calls at a dispatch site with a receiver of the given class, and with
+	 * any other.
+	 */
+	public long[] receiverSplit(final int site, final int classId) {
+		final HashMap<Integer, Long> counts = receivers.get(site);
+		long total = 0;
+		for (final long n : counts.values()) {
+			total += n;
+		}
+		final long hits = counts.get(classId);
+		return new long[] { hits, total - hits };
+	}
+	
+}
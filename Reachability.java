@@ -0,0 +1,163 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Rapid type analysis: the classes a program can instantiate and the
+ * methods it can call, found from Main.main over the typed AST.
+ *
+ * A call through the vtable can reach the implementation of its slot in
+ * every instantiated subclass of the receiver's static type, so each such
+ * slot is remembered and resolved again whenever another class becomes
+ * instantiated. Instantiating a class also runs its attribute initializers.
+ * Calls that CodeGenerator makes directly (static dispatch, or a slot
+ * monomorphic by CodeGenerator.findMonomorphicSlots) reach their target
+ * whether or not any receiver is ever created.
+ *
+ * Only live classes (instantiated ones and their ancestors) need a
+ * descriptor, and only reachable methods a function.
+ */
+public class Reachability {
+	
+	protected final Environment env;
+	
+	protected final HashSet<Environment.CoolClass> instantiated = new HashSet<Environment.CoolClass>();
+	protected final HashSet<Environment.CoolClass> live = new HashSet<Environment.CoolClass>();
+	protected final HashSet<Environment.CoolMethod> reachable = new HashSet<Environment.CoolMethod>();
+	
+	// Slots called through the vtable, by the receiver's static type
+	protected final HashMap<Environment.CoolClass, HashSet<Integer>> calledSlots = new HashMap<Environment.CoolClass, HashSet<Integer>>();
+	
+	// Reachable methods whose bodies are still to be scanned
+	protected final LinkedList<Environment.CoolMethod> pending = new LinkedList<Environment.CoolMethod>();
+	
+	public Reachability(final Environment env)
+			throws Environment.EnvironmentException {
+		this.env = env;
+		
+		// Literals, boxing and the builtins create these without a NEW
+		instantiate(env.getClass("String"));
+		instantiate(env.getClass("Int"));
+		instantiate(env.getClass("Bool"));
+		final Environment.CoolClass main = env.getClass("Main");
+		instantiate(main);
+		call(env.lookupMethod(main, "main"));
+		while (!pending.isEmpty()) {
+			final Environment.CoolMethod m = pending.removeFirst();
+			scan(m.parent, m.node.right);
+		}
+		
+		for (final Environment.CoolClass c : instantiated) {
+			Environment.CoolClass a = c;
+			while (live.add(a) && a.parent != a) {
+				a = a.parent;
+			}
+		}
+		Trace.CODEGEN.info("Reachable: {0} of {1} classes live", live.size(),
+				env.hierarchy.size());
+		Trace.CODEGEN.info("Reachable: {0} methods", reachable.size());
+	}
+	
+	/**
+	 * True if the class is instantiated or an ancestor of one that is, and
+	 * so needs a descriptor.
+	 */
+	public boolean isLive(final Environment.CoolClass c) {
+		return live.contains(c);
+	}
+	
+	public boolean isInstantiated(final Environment.CoolClass c) {
+		return instantiated.contains(c);
+	}
+	
+	public boolean isReachable(final Environment.CoolMethod m) {
+		return reachable.contains(m);
+	}
+	
+	private void instantiate(final Environment.CoolClass c)
+			throws Environment.EnvironmentException {
+		if (!instantiated.add(c)) {
+			return;
+		}
+		for (final Environment.CoolAttribute a : c.attrTable) {
+			if (a.node.right != null) {
+				scan(a.parent, a.node.right);
+			}
+		}
+		final List<Environment.CoolClass> types = new ArrayList<Environment.CoolClass>(
+				calledSlots.keySet());
+		for (final Environment.CoolClass t : types) {
+			if (env.hierarchy.isSubtype(c, t)) {
+				for (final int slot : new ArrayList<Integer>(calledSlots.get(t))) {
+					call(c.methodTable[slot]);
+				}
+			}
+		}
+	}
+	
+	private void callSlot(final Environment.CoolClass type, final int slot) {
+		HashSet<Integer> slots = calledSlots.get(type);
+		if (slots == null) {
+			slots = new HashSet<Integer>();
+			calledSlots.put(type, slots);
+		}
+		if (!slots.add(slot)) {
+			return;
+		}
+		for (final Environment.CoolClass c : new ArrayList<Environment.CoolClass>(
+				instantiated)) {
+			if (env.hierarchy.isSubtype(c, type)) {
+				call(c.methodTable[slot]);
+			}
+		}
+	}
+	
+	private void call(final Environment.CoolMethod m) {
+		if (m != null && m.hasImplementation() && reachable.add(m)
+				&& m.node != null) {
+			pending.add(m);
+		}
+	}
+	
+	private void scan(final Environment.CoolClass cls, final ASTnode n)
+			throws Environment.EnvironmentException {
+		if (n == null) {
+			return;
+		}
+		switch (n.kind) {
+		case sym.NEW:
+			instantiate(env.getClass((String) n.value));
+			return;
+		
+		case sym.DOT: {
+			// Resolved as CodeGenerator resolves it
+			Environment.CoolClass curClass = cls;
+			if (n.left != null) {
+				curClass = n.left.type;
+			}
+			if (n.center != null) {
+				curClass = env.getClass((String) n.center.value);
+			}
+			final Environment.CoolMethod method = env.lookupMethod(curClass,
+					(String) n.value);
+			if (n.center != null) {
+				call(method);
+			} else if (curClass.monomorphic[method.index] != null) {
+				call(curClass.monomorphic[method.index]);
+			} else {
+				callSlot(curClass, method.index);
+			}
+			break;
+		}
+		
+		default:
+			break;
+		}
+		scan(cls, n.left);
+		scan(cls, n.center);
+		scan(cls, n.right);
+	}
+	
+}
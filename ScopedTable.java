@@ -0,0 +1,118 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Symbol table for nested scopes (method formals, let and case bindings).
+ *
+ * Names are interned to small integer symbols, and the visible binding of
+ * each symbol lives in an array indexed by symbol. Binding a name records
+ * the symbol and the value it shadows in an array-backed undo log;
+ * exitScope() replays the log back to the mark taken by the matching
+ * enterScope(). Once the arrays have grown to fit the deepest nesting seen,
+ * entering, binding and leaving scopes allocates nothing.
+ */
+public class ScopedTable<V> {
+	
+	private final HashMap<String, Integer> symbols = new HashMap<String, Integer>();
+	private String[] names = new String[64];
+	
+	// Visible binding of each symbol, or null if it is unbound
+	private Object[] values = new Object[64];
+	
+	// Undo log: the symbol bound by each entry and the value it shadowed
+	private int[] logSymbol = new int[64];
+	private Object[] logShadowed = new Object[64];
+	private int logTop = 0;
+	
+	// Log position at entry to each open scope
+	private int[] scopeMark = new int[16];
+	private int depth = 0;
+	
+	/**
+	 * The symbol for a name, interning it on first use.
+	 */
+	private int symbol(final String name) {
+		final Integer sym = symbols.get(name);
+		if (sym != null) {
+			return sym;
+		}
+		final int next = symbols.size();
+		if (next == names.length) {
+			names = grow(names);
+			values = grow(values);
+		}
+		names[next] = name;
+		symbols.put(name, next);
+		return next;
+	}
+	
+	public void enterScope() {
+		if (depth == scopeMark.length) {
+			final int[] marks = new int[depth * 2];
+			System.arraycopy(scopeMark, 0, marks, 0, depth);
+			scopeMark = marks;
+		}
+		scopeMark[depth++] = logTop;
+	}
+	
+	/**
+	 * Bind a name in the innermost scope, shadowing any outer binding until
+	 * the scope is exited.
+	 */
+	public void bind(final String name, final V value) {
+		if (depth == 0) {
+			throw new IllegalStateException("bind(" + name
+					+ ") outside of any scope");
+		}
+		final int sym = symbol(name);
+		if (logTop == logSymbol.length) {
+			final int[] syms = new int[logTop * 2];
+			System.arraycopy(logSymbol, 0, syms, 0, logTop);
+			logSymbol = syms;
+			logShadowed = grow(logShadowed);
+		}
+		logSymbol[logTop] = sym;
+		logShadowed[logTop] = values[sym];
+		++logTop;
+		values[sym] = value;
+	}
+	
+	/**
+	 * Drop every binding made since the matching enterScope().
+	 */
+	public void exitScope() {
+		final int mark = scopeMark[--depth];
+		while (logTop > mark) {
+			--logTop;
+			values[logSymbol[logTop]] = logShadowed[logTop];
+			logShadowed[logTop] = null;
+		}
+	}
+	
+	@SuppressWarnings("unchecked")
+	public V get(final String name) {
+		final Integer sym = symbols.get(name);
+		return sym == null ? null : (V) values[sym];
+	}
+	
+	private static <T> T[] grow(final T[] array) {
+		return Arrays.copyOf(array, array.length * 2);
+	}
+	
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("{");
+		for (int sym = 0; sym < symbols.size(); ++sym) {
+			if (values[sym] != null) {
+				if (sb.length() > 1) {
+					sb.append(", ");
+				}
+				sb.append(names[sym]).append(" => ").append(values[sym]);
+			}
+		}
+		sb.append("}");
+		return sb.toString();
+	}
+	
+}
@@ -0,0 +1,164 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds a native executable from generated LLVM assembly by running the
+ * external toolchain: llvm-as, then opt with the pass pipeline for the
+ * optimization level, then llc and gcc at the same level, linking in the
+ * runtime library and the garbage collector.
+ *
+ * At -O0 opt is skipped altogether, so debug builds only pay for
+ * assembling and instruction selection.
+ */
+public class Toolchain {
+	
+	public static final int MAX_LEVEL = 3;
+	
+	// Builtin methods; built by make, relative to the compiler's classes
+	private static final String RUNTIME = "runtime/cool_runtime.o";
+	
+	// opt arguments for each level. -O1 only promotes local slots to
+	// registers and cleans up locally; -O2 and -O3 add inlining, GVN, LICM
+	// and the rest of the standard pipelines
+	private static final String[][] PIPELINES = {
+			{},
+			{ "-mem2reg", "-sroa", "-early-cse", "-instcombine",
+					"-simplifycfg" }, { "-O2" }, { "-O3" } };
+	
+	protected final int level;
+	protected final String name;
+	protected final Map<String, Object> stats;
+	
+	/**
+	 * @param name
+	 *            base name of the build: the assembly is written to name.ll
+	 *            and the executable to name
+	 * @param stats
+	 *            receives the opt pipeline and the time spent in each tool
+	 */
+	public Toolchain(final int level, final String name,
+			final Map<String, Object> stats) {
+		if (level < 0 || level > MAX_LEVEL) {
+			throw new IllegalArgumentException("No optimization level " + level);
+		}
+		this.level = level;
+		this.name = name;
+		this.stats = stats;
+	}
+	
+	public static String[] pipeline(final int level) {
+		return PIPELINES[level];
+	}
+	
+	/**
+	 * Returns false, having reported why, if any tool fails.
+	 */
+	public boolean build(final String code) throws IOException,
+			InterruptedException {
+		stats.put("opt.pipeline", level == 0 ? "(none)" : join(pipeline(level)));
+		
+		final Writer out = new FileWriter(name + ".ll");
+		try {
+			out.write(code);
+		} finally {
+			out.close();
+		}
+		
+		System.err.println("Assembling LLVM code...");
+		if (!run("llvm-as", name + ".ll", "-o", name + ".bc", "-f")) {
+			return false;
+		}
+		String bitcode = name + ".bc";
+		if (level > 0) {
+			System.err.println("Optimizing LLVM code...");
+			final List<String> opt = new ArrayList<String>();
+			opt.add("opt");
+			opt.addAll(Arrays.asList(pipeline(level)));
+			opt.addAll(Arrays.asList(bitcode, "-o", name + ".opt.bc", "-f"));
+			if (!run(opt.toArray(new String[opt.size()]))) {
+				return false;
+			}
+			bitcode = name + ".opt.bc";
+		}
+		System.err.println("Converting LLVM bytecode into native assembly code...");
+		if (!run("llc", "-O" + level, bitcode, "-o", name + ".S", "-f")) {
+			return false;
+		}
+		System.err.println("Assembling and linking...");
+		return run("gcc", name + ".S", runtimeLibrary(), "-O" + level,
+				"-lgc", "-o", name);
+	}
+	
+	/**
+	 * The runtime library next to the compiler's classes (or next to their
+	 * jar), so that programs can be built from any working directory.
+	 */
+	public static String runtimeLibrary() {
+		final CodeSource source = Toolchain.class.getProtectionDomain()
+				.getCodeSource();
+		if (source == null) {
+			return RUNTIME;
+		}
+		try {
+			File home = new File(source.getLocation().toURI());
+			if (home.isFile()) {
+				home = home.getParentFile();
+			}
+			return new File(home, RUNTIME).getPath();
+		} catch (final URISyntaxException e) {
+			return RUNTIME;
+		}
+	}
+	
+	private boolean run(final String... command) throws IOException,
+			InterruptedException {
+		final long start = System.currentTimeMillis();
+		final ProcessBuilder pb = new ProcessBuilder(command);
+		pb.redirectErrorStream(true);
+		final Process p;
+		try {
+			p = pb.start();
+		} catch (final IOException e) {
+			System.err.println("*** Could not run " + command[0] + ": "
+					+ e.getMessage());
+			return false;
+		}
+		final BufferedReader in = new BufferedReader(new InputStreamReader(p
+				.getInputStream()));
+		String line;
+		while ((line = in.readLine()) != null) {
+			System.err.println(line);
+		}
+		final int status = p.waitFor();
+		stats.put("time." + command[0], (System.currentTimeMillis() - start)
+				+ " ms");
+		if (status != 0) {
+			System.err.println("*** " + join(command) + " failed with status "
+					+ status);
+			return false;
+		}
+		return true;
+	}
+	
+	private static String join(final String[] words) {
+		final StringBuilder sb = new StringBuilder();
+		for (final String w : words) {
+			if (sb.length() > 0) {
+				sb.append(' ');
+			}
+			sb.append(w);
+		}
+		return sb.toString();
+	}
+	
+}
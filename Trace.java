@@ -0,0 +1,223 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.MessageFormat;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Structured tracing for the compiler phases.
+ *
+ * Each category has a threshold level, off by default. Call sites pass a
+ * MessageFormat pattern and its arguments rather than a finished string, and
+ * the pattern is only formatted once the category and level are known to be
+ * enabled, so a disabled trace point costs a field load and a comparison.
+ * Call sites that would have to compute their arguments can test on() first.
+ *
+ * Enabled events are queued to a background thread that writes them,
+ * buffered, to the trace file (standard error if none is given) as
+ * tab-separated lines: milliseconds since start, category, level, message,
+ * with any newlines in the message written as \n. Tracing never blocks the
+ * compiler: events that arrive while the queue is full are dropped, and
+ * the number dropped is reported at the end of the trace.
+ */
+public enum Trace {
+	SCANNER, PARSER, HIERARCHY, TYPECHECK, CODEGEN;
+	
+	public enum Level {
+		INFO, DEBUG
+	}
+	
+	// Ordinal of the most detailed level enabled; -1 when the category is off
+	private int threshold = -1;
+	
+	private static final long start = System.currentTimeMillis();
+	private static Sink sink = null;
+	
+	public boolean on(final Level level) {
+		return level.ordinal() <= threshold;
+	}
+	
+	public void info(final String pattern) {
+		if (on(Level.INFO)) {
+			emit(Level.INFO, pattern);
+		}
+	}
+	
+	public void info(final String pattern, final Object arg) {
+		if (on(Level.INFO)) {
+			emit(Level.INFO, MessageFormat.format(pattern, arg));
+		}
+	}
+	
+	public void info(final String pattern, final Object arg1,
+			final Object arg2) {
+		if (on(Level.INFO)) {
+			emit(Level.INFO, MessageFormat.format(pattern, arg1, arg2));
+		}
+	}
+	
+	public void debug(final String pattern) {
+		if (on(Level.DEBUG)) {
+			emit(Level.DEBUG, pattern);
+		}
+	}
+	
+	public void debug(final String pattern, final Object arg) {
+		if (on(Level.DEBUG)) {
+			emit(Level.DEBUG, MessageFormat.format(pattern, arg));
+		}
+	}
+	
+	public void debug(final String pattern, final Object arg1,
+			final Object arg2) {
+		if (on(Level.DEBUG)) {
+			emit(Level.DEBUG, MessageFormat.format(pattern, arg1, arg2));
+		}
+	}
+	
+	public void debug(final String pattern, final Object arg1,
+			final Object arg2, final Object arg3) {
+		if (on(Level.DEBUG)) {
+			emit(Level.DEBUG, MessageFormat.format(pattern, arg1, arg2, arg3));
+		}
+	}
+	
+	public void debug(final String pattern, final Object arg1,
+			final Object arg2, final Object arg3, final Object... rest) {
+		if (on(Level.DEBUG)) {
+			final Object[] args = new Object[3 + rest.length];
+			args[0] = arg1;
+			args[1] = arg2;
+			args[2] = arg3;
+			System.arraycopy(rest, 0, args, 3, rest.length);
+			emit(Level.DEBUG, MessageFormat.format(pattern, args));
+		}
+	}
+	
+	private void emit(final Level level, final String msg) {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(System.currentTimeMillis() - start).append('\t').append(
+				name().toLowerCase()).append('\t').append(
+				level.name().toLowerCase()).append('\t');
+		// One event per line, even for messages quoting string literals
+		for (int i = 0; i < msg.length(); ++i) {
+			final char ch = msg.charAt(i);
+			if (ch == '\n') {
+				sb.append("\\n");
+			} else {
+				sb.append(ch);
+			}
+		}
+		sink.write(sb.toString());
+	}
+	
+	/**
+	 * Enable tracing from a comma-separated list of category[:level]
+	 * entries, e.g. "typecheck,codegen:info". The category "all" stands for
+	 * every category; the level defaults to debug. Events go to the named
+	 * file, or to standard error if file is null.
+	 */
+	public static void configure(final String spec, final String file)
+			throws IOException {
+		for (final String entry : spec.split(",")) {
+			final String[] parts = entry.trim().split(":");
+			final Level level = parts.length > 1 ? Level.valueOf(parts[1]
+					.trim().toUpperCase()) : Level.DEBUG;
+			if (parts[0].trim().equalsIgnoreCase("all")) {
+				for (final Trace t : values()) {
+					t.threshold = Math.max(t.threshold, level.ordinal());
+				}
+			} else {
+				final Trace t = valueOf(parts[0].trim().toUpperCase());
+				t.threshold = Math.max(t.threshold, level.ordinal());
+			}
+		}
+		if (file == null) {
+			sink = new Sink(new BufferedWriter(new OutputStreamWriter(
+					System.err), 1 << 16), false);
+		} else {
+			sink = new Sink(new BufferedWriter(new FileWriter(file), 1 << 16),
+					true);
+		}
+		sink.start();
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				close();
+			}
+		});
+	}
+	
+	/**
+	 * Write out any queued events and close the trace file. Safe to call
+	 * more than once, and a no-op if tracing was never configured.
+	 */
+	public static synchronized void close() {
+		if (sink != null) {
+			for (final Trace t : values()) {
+				t.threshold = -1;
+			}
+			sink.finish();
+			sink = null;
+		}
+	}
+	
+	private static class Sink extends Thread {
+		private static final String END = new String("END");
+		
+		private final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(
+				1 << 14);
+		private final Writer out;
+		private final boolean ownsOutput;
+		private final AtomicLong dropped = new AtomicLong();
+		
+		public Sink(final Writer out, final boolean ownsOutput) {
+			super("trace-sink");
+			this.out = out;
+			this.ownsOutput = ownsOutput;
+			setDaemon(true);
+		}
+		
+		public void write(final String event) {
+			if (!queue.offer(event)) {
+				dropped.incrementAndGet();
+			}
+		}
+		
+		public void finish() {
+			try {
+				queue.put(END);
+				join();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		@Override
+		public void run() {
+			try {
+				String event = queue.take();
+				while (event != END) {
+					out.write(event);
+					out.write('\n');
+					event = queue.take();
+				}
+				if (dropped.get() > 0) {
+					out.write(dropped.get()
+							+ " trace events dropped: queue full\n");
+				}
+				out.flush();
+				if (ownsOutput) {
+					out.close();
+				}
+			} catch (final Exception e) {
+				System.err.println("Trace output failed: " + e);
+			}
+		}
+	}
+	
+}
@@ -1,7 +1,8 @@
 import java.text.MessageFormat;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
 
@@ -10,8 +11,6 @@ public class TypeChecker {
 	protected ASTnode root;
 	protected Environment env;
 	
-	protected boolean debug;
-	
 	protected final Environment.CoolClass OBJECT;
 	protected final Environment.CoolClass BOOL;
 	protected final Environment.CoolClass INT;
@@ -26,11 +25,10 @@ public class TypeChecker {
 		}
 	}
 	
-	public TypeChecker(final ASTnode root, final boolean debug)
+	public TypeChecker(final ASTnode root)
 			throws Environment.EnvironmentException {
 		this.root = root;
-		this.debug = debug;
-		env = new Environment(debug);
+		env = new Environment();
 		OBJECT = env.getClass("Object");
 		BOOL = env.getClass("Bool");
 		INT = env.getClass("Int");
@@ -44,26 +42,32 @@ public class TypeChecker {
 	
 	public boolean typecheck() {
 		try {
-			log("\n--> Pass 1: identifying classes...");
+			Trace.HIERARCHY.info("--> Pass 1: identifying classes...");
 			identifyClasses(root);
-			log("\n--> Pass 2: determining inheritance hierarchy...");
+			Trace.HIERARCHY.info(
+					"--> Pass 2: determining inheritance hierarchy...");
 			identifyParents(root);
-			log("\n--> Checking inheritance hierarchy for cycles...");
+			Trace.HIERARCHY.info(
+					"--> Checking inheritance hierarchy for cycles...");
 			checkHierarchyForCycles();
+			env.indexHierarchy();
 			
-			log("\n--> Pass 3a: identifying attributes and methods");
+			Trace.HIERARCHY.info(
+					"--> Pass 3a: identifying attributes and methods");
 			this.getMethodsAndAttributes();
 			
-			log("\n--> Pass 3b: dealing with attribute inheritance");
+			Trace.HIERARCHY.info(
+					"--> Pass 3b: dealing with attribute inheritance");
 			inheritAttributes();
 			
-			log("\n--> Pass 3c: dealing with method inheritance");
+			Trace.HIERARCHY.info(
+					"--> Pass 3c: dealing with method inheritance");
 			inheritMethods();
 			
-			log("\n--> Pass 4: typecheck attributes");
+			Trace.TYPECHECK.info("--> Pass 4: typecheck attributes");
 			checkAttributes();
 			
-			log("\n--> Pass 5: typecheck methods");
+			Trace.TYPECHECK.info("--> Pass 5: typecheck methods");
 			checkMethods();
 			
 			if (!env.classes.containsKey("Main")) {
@@ -80,7 +84,7 @@ public class TypeChecker {
 				}
 			}
 			
-			log("\n--> Typechecking completed!");
+			Trace.TYPECHECK.info("--> Typechecking completed!");
 		} catch (final Exception ex) {
 			System.err.println("*** Typechecking Failed! ***");
 			ex.printStackTrace();
@@ -134,17 +138,16 @@ public class TypeChecker {
 					final Environment.CoolClass parentClass = env
 							.getClass((String) node.left.value);
 					thisClass.parent = parentClass;
-					log(MessageFormat.format("Class {0} inherits from {1}",
-							thisClass, parentClass));
+					Trace.HIERARCHY.debug("Class {0} inherits from {1}",
+							thisClass, parentClass);
 				} else {
 					final Environment.CoolClass thisClass = env
 							.getClass((String) node.value);
 					final Environment.CoolClass parentClass = OBJECT;
 					thisClass.parent = parentClass;
-					log(MessageFormat
-							.format(
-									"Class {0} has no listed parent, so assuming it inherits from {1}",
-									thisClass, parentClass));
+					Trace.HIERARCHY.debug(
+							"Class {0} has no listed parent, so assuming it inherits from {1}",
+							thisClass, parentClass);
 				}
 				break;
 			case (sym.SEMI):
@@ -164,33 +167,25 @@ public class TypeChecker {
 	// Make sure class hierarchy is a tree
 	protected void checkHierarchyForCycles()
 			throws Environment.EnvironmentException, TypeCheckException {
-		final HashSet<Environment.CoolClass> red = new HashSet<Environment.CoolClass>();
-		final HashSet<Environment.CoolClass> green = new HashSet<Environment.CoolClass>();
-		green.add(OBJECT);
-		final Iterator<Entry<String, Environment.CoolClass>> iter = env.classes
-				.entrySet().iterator();
-		while (iter.hasNext()) {
-			final Entry<String, Environment.CoolClass> entry = iter.next();
-			Environment.CoolClass currClass = entry.getValue();
-			while (!green.contains(currClass)) {
-				if (red.contains(currClass)) {
-					throw new TypeCheckException(
-							"Class hierarchy is not a tree.");
-				} else {
-					red.add(currClass);
-					currClass = currClass.parent;
-				}
-			}
-			final Iterator<Environment.CoolClass> reds = red.iterator();
-			Environment.CoolClass redClass;
-			while (reds.hasNext()) {
-				redClass = reds.next();
-				reds.remove();
-				green.add(redClass);
+		// true for classes known to lead to Object, false for those on the
+		// chain of parents being followed
+		final HashMap<Environment.CoolClass, Boolean> seen = new HashMap<Environment.CoolClass, Boolean>();
+		seen.put(OBJECT, true);
+		for (final Environment.CoolClass start : env.classes.values()) {
+			Environment.CoolClass currClass = start;
+			Boolean leadsToObject;
+			while ((leadsToObject = seen.get(currClass)) == null) {
+				seen.put(currClass, false);
+				currClass = currClass.parent;
+			}
+			if (!leadsToObject) {
+				throw new TypeCheckException("Class hierarchy is not a tree.");
+			}
+			for (Environment.CoolClass c = start; c != currClass; c = c.parent) {
+				seen.put(c, true);
 			}
-			red.clear();
 		}
-		log("Class hierarchy contains no cycles.");
+		Trace.HIERARCHY.debug("Class hierarchy contains no cycles.");
 	}
 	
 	/*
@@ -199,13 +194,14 @@ public class TypeChecker {
 
 	protected void getMethodsAndAttributes() throws TypeCheckException,
 			Environment.EnvironmentException {
-		for (final Entry<String, Environment.CoolClass> e : env.classes
-				.entrySet()) {
-			final Environment.CoolClass curClass = e.getValue();
+		// Parents before children, so that redefinitions of inherited
+		// features are always detected
+		for (int id = 0; id < env.hierarchy.size(); ++id) {
+			final Environment.CoolClass curClass = env.hierarchy.byId(id);
 			if (curClass.node != null && curClass.node.right != null) {
-				log(MessageFormat.format(
+				Trace.HIERARCHY.debug(
 						"Processing methods and attributes of class {0}",
-						curClass));
+						curClass);
 				this.getMethodsAndAttributes(curClass, curClass.node.right);
 			}
 		}
@@ -255,93 +251,104 @@ public class TypeChecker {
 	}
 	
 	private void inheritAttributes() {
-		for (final Environment.CoolClass c : env.classes.values()) {
-			inheritAttributes(c);
+		// Parents before children, so each class can start from its parent's
+		// finished tables
+		for (int id = 0; id < env.hierarchy.size(); ++id) {
+			inheritAttributes(env.hierarchy.byId(id));
 		}
 	}
 	
+	// Rank of the size of an attribute's field in an instance
+	private int fieldWidth(final Environment.CoolClass type) {
+		if (type == BOOL) {
+			return 0;
+		} else if (type == INT) {
+			return 1;
+		}
+		return 2;
+	}
+	
 	private void inheritAttributes(final Environment.CoolClass c) {
-		if (!c.attrInheritDone && c != OBJECT) {
-			log("Checking " + c);
-			inheritAttributes(c.parent);
-			final LinkedList<Environment.CoolClass> q = new LinkedList<Environment.CoolClass>();
-			q.push(c);
-			Environment.CoolClass p = c.parent;
-			while (p != OBJECT) {
-				q.push(p);
-				p = p.parent;
-			}
-			while (!q.isEmpty()) {
-				final Environment.CoolClass curClass = q.pop();
-				for (final Environment.CoolAttribute a : curClass.attributes
-						.values()) {
-					log("Found attribute " + a + " of " + curClass + " for "
-							+ c);
-					c.attrList.add(a);
+		final List<Environment.CoolAttribute> table = new ArrayList<Environment.CoolAttribute>();
+		final HashMap<String, Environment.CoolAttribute> visible;
+		if (c == OBJECT) {
+			visible = new HashMap<String, Environment.CoolAttribute>();
+		} else {
+			table.addAll(Arrays.asList(c.parent.attrTable));
+			visible = new HashMap<String, Environment.CoolAttribute>(
+					c.parent.visibleAttributes);
+		}
+		// Field 0 of every instance is its class pointer, and the parent's
+		// fields come next. The class's own attributes follow widest first
+		// (object pointers, then unboxed Ints, then Bools) so that none needs
+		// padding; the table keeps them in declaration order, which is the
+		// order their initializers run in
+		int index = table.size() + 1;
+		for (int width = 2; width >= 0; --width) {
+			for (final Environment.CoolAttribute a : c.attributes.values()) {
+				if (fieldWidth(a.type) == width) {
+					a.index = index++;
 				}
 			}
-			c.attrInheritDone = true;
 		}
-		log("Class: " + c);
-		if (debug) {
-			for (final Environment.CoolAttribute a : c.attrList) {
-				System.err.println(MessageFormat.format("In {0} is {1}", c, a));
+		for (final Environment.CoolAttribute a : c.attributes.values()) {
+			table.add(a);
+			visible.put(a.name, a);
+		}
+		c.attrTable = table.toArray(new Environment.CoolAttribute[table.size()]);
+		c.visibleAttributes = visible;
+		Trace.HIERARCHY.debug("Class: {0}", c);
+		if (Trace.HIERARCHY.on(Trace.Level.DEBUG)) {
+			for (final Environment.CoolAttribute a : c.attrTable) {
+				Trace.HIERARCHY.debug("In {0} is {1} (field {2})", c, a, a.index);
 			}
 		}
 	}
 	
 	private void inheritMethods() {
-		for (final Environment.CoolClass c : env.classes.values()) {
-			inheritMethods(c);
+		// Parents before children: each vtable starts as a copy of the
+		// parent's, so every class's table is a prefix extension of its
+		// parent's and an inherited method keeps its slot everywhere
+		for (int id = 0; id < env.hierarchy.size(); ++id) {
+			inheritMethods(env.hierarchy.byId(id));
 		}
-		if (debug) {
-			for (final Environment.CoolClass c : env.classes.values()) {
-				log(MessageFormat.format("\nClass {0} methodlist:", c));
-				for (final Environment.CoolMethod m : c.methodList) {
-					log(MessageFormat.format("{0} (parent = {1})", m, m.parent));
+		if (Trace.HIERARCHY.on(Trace.Level.DEBUG)) {
+			for (int id = 0; id < env.hierarchy.size(); ++id) {
+				final Environment.CoolClass c = env.hierarchy.byId(id);
+				Trace.HIERARCHY.debug("Class {0} vtable:", c);
+				for (final Environment.CoolMethod m : c.methodTable) {
+					Trace.HIERARCHY.debug("{0}: {1} (parent = {2})", m.index, m,
+							m.parent);
 				}
 			}
 		}
 	}
 	
 	private void inheritMethods(final Environment.CoolClass c) {
-		if (!c.methodInheritDone && c != OBJECT) {
-			log("Checking " + c);
-			inheritMethods(c.parent);
-			final LinkedList<Environment.CoolClass> q = new LinkedList<Environment.CoolClass>();
-			q.push(c);
-			Environment.CoolClass p = c.parent;
-			while (p != OBJECT) {
-				q.push(p);
-				p = p.parent;
-			}
-			while (!q.isEmpty()) {
-				final Environment.CoolClass curClass = q.pop();
-				for (final Environment.CoolMethod a : curClass.methods.values()) {
-					log("Found method " + a + " of " + curClass + " for " + c);
-					final Environment.CoolMethod overriddenMethod = c.methods
-							.get(a.name);
-					log(overriddenMethod != null ? "" + overriddenMethod.parent
-							: "not overridden");
-					if (overriddenMethod != null) {
-						if (!c.methodList.contains(overriddenMethod)) {
-							c.methodList.add(overriddenMethod);
-						}
-					} else {
-						if (!c.methodList.contains(a)) {
-							c.methodList.add(a);
-						}
-					}
-				}
-			}
-			c.methodInheritDone = true;
+		final List<Environment.CoolMethod> table = new ArrayList<Environment.CoolMethod>();
+		final HashMap<String, Environment.CoolMethod> visible;
+		if (c == OBJECT) {
+			visible = new HashMap<String, Environment.CoolMethod>();
+		} else {
+			table.addAll(Arrays.asList(c.parent.methodTable));
+			visible = new HashMap<String, Environment.CoolMethod>(
+					c.parent.visibleMethods);
 		}
-		log("Class: " + c);
-		if (debug) {
-			for (final Environment.CoolAttribute a : c.attrList) {
-				System.err.println(MessageFormat.format("In {0} is {1}", c, a));
+		for (final Environment.CoolMethod m : c.methods.values()) {
+			final Environment.CoolMethod overridden = visible.get(m.name);
+			if (overridden != null) {
+				m.index = overridden.index;
+				m.origin = overridden.origin;
+				table.set(m.index, m);
+			} else {
+				m.index = table.size();
+				m.origin = m;
+				table.add(m);
 			}
+			visible.put(m.name, m);
 		}
+		c.methodTable = table.toArray(new Environment.CoolMethod[table.size()]);
+		c.visibleMethods = visible;
 	}
 	
 	private void processMethodArguments(final Environment.CoolMethod method,
@@ -383,16 +390,16 @@ public class TypeChecker {
 			if (curClass.builtin) {
 				continue;
 			}
-			log(MessageFormat.format("Typechecking attributes of class {0}",
-					curClass));
+			Trace.TYPECHECK.debug("Typechecking attributes of class {0}",
+					curClass);
 			for (final Entry<String, Environment.CoolAttribute> e2 : curClass.attributes
 					.entrySet()) {
 				final Environment.CoolAttribute attr = e2.getValue();
 				if (attr.node.right != null) {
-					log("Checking attribute " + attr);
+					Trace.TYPECHECK.debug("Checking attribute {0}", attr);
 					check(curClass, attr.node.right);
-					log(MessageFormat.format("Expr type: {0}; Attr type: {1}",
-							attr.node.right.type, attr.node.type));
+					Trace.TYPECHECK.debug("Expr type: {0}; Attr type: {1}",
+							attr.node.right.type, attr.node.type);
 					if (!moreGeneralOrEqualTo(attr.node.type,
 							attr.node.right.type)) {
 						throw new TypeCheckException(MessageFormat.format(
@@ -412,33 +419,30 @@ public class TypeChecker {
 			if (curClass.builtin) {
 				continue;
 			}
-			log(MessageFormat.format("Typechecking methods of class {0}",
-					curClass));
+			Trace.TYPECHECK.debug("Typechecking methods of class {0}",
+					curClass);
 			for (final Entry<String, Environment.CoolMethod> e2 : curClass.methods
 					.entrySet()) {
 				final Environment.CoolMethod method = e2.getValue();
 				if (method.node.right != null) {
-					log("Checking method " + method);
+					Trace.TYPECHECK.debug("Checking method {0}", method);
+					env.localTypes.enterScope();
 					for (final Environment.CoolAttribute a : method.arguments) {
-						log(MessageFormat
-								.format(
-										"Pushing method argument {0} onto local environment",
-										a));
-						env.localTypes.push(a.name, a.type);
+						Trace.TYPECHECK.debug(
+								"Binding method argument {0} in local environment",
+								a);
+						env.localTypes.bind(a.name, a.type);
 					}
-					log(MessageFormat.format("Local environment is {0}",
-							env.localTypes));
+					Trace.TYPECHECK.debug("Local environment is {0}",
+							env.localTypes);
 					check(curClass, method.node.right);
-					for (@SuppressWarnings("unused")
-					final Environment.CoolAttribute a : method.arguments) {
-						log("Popping local environment");
-						env.localTypes.pop();
-					}
-					log(MessageFormat.format("Local environment is {0}",
-							env.localTypes));
-					log(MessageFormat.format(
+					Trace.TYPECHECK.debug("Leaving method scope");
+					env.localTypes.exitScope();
+					Trace.TYPECHECK.debug("Local environment is {0}",
+							env.localTypes);
+					Trace.TYPECHECK.debug(
 							"Declared method type: {0}; Method body type: {1}",
-							method.node.right.type, method.node.type));
+							method.node.right.type, method.node.type);
 					if (!moreGeneralOrEqualTo(method.node.type,
 							method.node.right.type)) {
 						throw new TypeCheckException(MessageFormat.format(
@@ -487,15 +491,15 @@ public class TypeChecker {
 						node.left);
 				final Environment.CoolClass rightType = check(curClass,
 						node.right);
-				log(MessageFormat
-						.format(
-								"Assignment: Left-side {0} has type {1}; right-side has type {2}",
-								node.left.value, node.left.type,
-								node.right.type));
+				Trace.TYPECHECK.debug(
+						"Assignment: Left-side {0} has type {1}; right-side has type {2}",
+						node.left.value, node.left.type, node.right.type);
 				if (moreGeneralOrEqualTo(leftType, rightType)) {
-					log(MessageFormat.format(
-							"Most specific parent in common is {0}",
-							mostSpecificParent(leftType, rightType)));
+					if (Trace.TYPECHECK.on(Trace.Level.DEBUG)) {
+						Trace.TYPECHECK.debug(
+								"Most specific parent in common is {0}",
+								mostSpecificParent(leftType, rightType));
+					}
 					return setType(rightType, node);
 				} else {
 					throw new TypeCheckException(
@@ -538,15 +542,14 @@ public class TypeChecker {
 												staticClass, containingClass,
 												node.left.value));
 					}
-					log(MessageFormat
-							.format(
-									"Static dispatch; will use {0} as type for method call {1}",
-									staticClass, node.value));
+					Trace.TYPECHECK.debug(
+							"Static dispatch; will use {0} as type for method call {1}",
+							staticClass, node.value);
 					containingClass = staticClass;
 				}
 				
-				log(MessageFormat.format("Looking up method {0} in {1}",
-						node.value, containingClass));
+				Trace.TYPECHECK.debug("Looking up method {0} in {1}",
+						node.value, containingClass);
 				final Environment.CoolMethod method = env.lookupMethod(
 						containingClass, (String) node.value);
 				if (method == null) {
@@ -557,7 +560,7 @@ public class TypeChecker {
 											node.value, containingClass));
 				}
 				
-				final List<Environment.CoolClass> actuals = new LinkedList<Environment.CoolClass>();
+				final List<Environment.CoolClass> actuals = new ArrayList<Environment.CoolClass>();
 				getArgumentTypes(node.right, actuals);
 				final List<Environment.CoolAttribute> formals = method.arguments;
 				
@@ -601,9 +604,9 @@ public class TypeChecker {
 				check(curClass, node.right);
 				final Environment.CoolClass unionType = mostSpecificParent(
 						node.center.type, node.right.type);
-				log(MessageFormat.format(
+				Trace.TYPECHECK.debug(
 						"Then type: {0}; Else type: {1}; Union type: {2}",
-						node.center.type, node.right.type, unionType));
+						node.center.type, node.right.type, unionType);
 				return setType(unionType, node);
 			}
 				
@@ -621,36 +624,33 @@ public class TypeChecker {
 			}
 				
 			case sym.LET: {
+				env.localTypes.enterScope();
 				final int numVars = addLetIntroductions(curClass, node.left, 0);
-				log(MessageFormat
-						.format(
-								"Let expression resulted in {0} variables added to local environment, which is now: {1}",
-								numVars, env.localTypes));
+				Trace.TYPECHECK.debug(
+						"Let expression resulted in {0} variables added to local environment, which is now: {1}",
+						numVars, env.localTypes);
 				check(curClass, node.right);
-				for (int i = 0; i < numVars; ++i) {
-					log("Popping mapping off local environment");
-					env.localTypes.pop();
-				}
-				log(MessageFormat.format(
+				env.localTypes.exitScope();
+				Trace.TYPECHECK.debug(
 						"After let evaluated, local environment is {0}",
-						env.localTypes));
+						env.localTypes);
 				return setType(node.right.type, node);
 			}
 				
 			case sym.CASE: {
 				check(curClass, node.left);
-				List<Environment.CoolClass> list = new LinkedList<Environment.CoolClass>();
+				List<Environment.CoolClass> list = new ArrayList<Environment.CoolClass>();
 				list = getCaseTypes(curClass, node.right, list);
 				final Iterator<Environment.CoolClass> iter = list.iterator();
 				Environment.CoolClass caseClass = iter.next();
 				while (iter.hasNext()) {
 					final Environment.CoolClass nextClass = iter.next();
-					log(MessageFormat.format("Comparing {0} and {1}",
-							caseClass, nextClass));
+					Trace.TYPECHECK.debug("Comparing {0} and {1}", caseClass,
+							nextClass);
 					caseClass = mostSpecificParent(caseClass, nextClass);
 				}
-				log(MessageFormat.format("Union type of case statement is {0}",
-						caseClass));
+				Trace.TYPECHECK.debug("Union type of case statement is {0}",
+						caseClass);
 				return setType(caseClass, node);
 			}
 				
@@ -765,19 +765,20 @@ public class TypeChecker {
 					throw new TypeCheckException(
 							"The special variable 'self' cannot be bound in a case statement.");
 				}
-				final Environment.CoolClass type = env
-						.getClass((String) node.left.right.value);
-				env.localTypes.push(name, type);
-				log(MessageFormat
-						.format(
-								"Pushing {0}:{1} onto local environment for CASE branch; localEnv is {2}",
-								name, type, env.localTypes));
+				// Recorded on the branch's type node for the code generator
+				final Environment.CoolClass type = setType(env
+						.getClass((String) node.left.right.value),
+						node.left.right);
+				env.localTypes.enterScope();
+				env.localTypes.bind(name, type);
+				Trace.TYPECHECK.debug(
+						"Binding {0}:{1} in local environment for CASE branch; localEnv is {2}",
+						name, type, env.localTypes);
 				check(curClass, node.right);
-				env.localTypes.pop();
-				log(MessageFormat
-						.format(
-								"Popping local environment after CASE branch; localEnv is {0}",
-								env.localTypes));
+				env.localTypes.exitScope();
+				Trace.TYPECHECK.debug(
+						"Local environment after CASE branch is {0}",
+						env.localTypes);
 				list.add(node.right.type);
 			}
 		}
@@ -815,10 +816,9 @@ public class TypeChecker {
 					}
 					actualType = node.right.type;
 				}
-				log(MessageFormat.format(
-						"Pushing {0}:{1} onto local environment", name,
-						actualType));
-				env.localTypes.push(name, actualType);
+				Trace.TYPECHECK.debug("Binding {0}:{1} in local environment",
+						name, actualType);
+				env.localTypes.bind(name, actualType);
 				break;
 			}
 			default:
@@ -863,8 +863,8 @@ public class TypeChecker {
 				getArgumentTypes(node.left, list);
 				getArgumentTypes(node.right, list);
 			} else {
-				log(MessageFormat.format("Argument type: {0}; value: {1}",
-						node.type, node.value));
+				Trace.TYPECHECK.debug("Argument type: {0}; value: {1}",
+						node.type, node.value);
 				list.add(node.type);
 			}
 		}
@@ -889,33 +889,15 @@ public class TypeChecker {
 	 */
 
 	protected boolean moreGeneralOrEqualTo(final Environment.CoolClass c1,
-			Environment.CoolClass c2) throws Environment.EnvironmentException {
-		while (c2 != c1 && c2 != OBJECT) {
-			c2 = c2.parent;
-		}
-		return c2 == c1;
+			final Environment.CoolClass c2)
+			throws Environment.EnvironmentException {
+		return env.hierarchy.isSubtype(c2, c1);
 	}
 	
 	protected Environment.CoolClass mostSpecificParent(
-			Environment.CoolClass c1, Environment.CoolClass c2)
+			final Environment.CoolClass c1, final Environment.CoolClass c2)
 			throws Environment.EnvironmentException {
-		final HashSet<Environment.CoolClass> alreadySeen = new HashSet<Environment.CoolClass>();
-		
-		while (true) {
-			if (alreadySeen.contains(c1) && c1 != OBJECT) {
-				return c1;
-			}
-			alreadySeen.add(c1);
-			c1 = c1.parent;
-			if (alreadySeen.contains(c2) && c2 != OBJECT) {
-				return c2;
-			}
-			alreadySeen.add(c2);
-			c2 = c2.parent;
-			if (c1 == c2) {
-				return c1;
-			}
-		}
+		return env.hierarchy.leastCommonAncestor(c1, c2);
 	}
 	
 	protected Environment.CoolClass setType(final Environment.CoolClass cls,
@@ -931,10 +913,4 @@ public class TypeChecker {
 		env.addClass(newClass);
 	}
 	
-	public void log(final String msg) {
-		if (debug) {
-			System.err.println(msg);
-		}
-	}
-	
 }
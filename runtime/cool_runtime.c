@@ -0,0 +1,712 @@
+/*
+ * Runtime library linked into every Cool program: the builtin methods of
+ * Object, IO and String that are not generated inline.
+ *
+ * Standard output goes through a large buffer, flushed when full, before
+ * reading input, at exit and before any error message. Input is read in
+ * large blocks and split into lines here. Programs compiled with -profile
+ * also count and time their method calls here, and those compiled with
+ * -profile-alloc count their allocations.
+ *
+ * The structures below mirror the LLVM types emitted by CodeGenerator and
+ * must be kept in step with generateClassDescriptors.
+ */
+
+#define _POSIX_C_SOURCE 200809L
+
+#include <sys/types.h>
+#include <signal.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <unistd.h>
+#if defined(__x86_64__) || defined(__i386__)
+#include <x86intrin.h>
+#endif
+#include <gc.h>
+#include <gc_mark.h>
+
+#define OUT_BUFFER_SIZE (1 << 16)
+#define IN_BUFFER_SIZE (1 << 16)
+
+typedef struct cool_class cool_class;
+
+typedef struct cool_object {
+	const cool_class *cls;
+} cool_object;
+
+/*
+ * Strings carry their length. The characters need not be NUL-terminated:
+ * a substring shares the characters of the string it was taken from.
+ */
+typedef struct cool_string {
+	const cool_class *cls;
+	int32_t length;
+	const char *chars;
+} cool_string;
+
+/*
+ * %__class_*: the parent's descriptor, the class ID and the highest ID of
+ * its subclasses, the class name, the instance size, then the vtable.
+ */
+struct cool_class {
+	const cool_class *parent;
+	int32_t id;
+	int32_t last;
+	const cool_string *name;
+	int64_t size;
+};
+
+/* Allocations made by the runtime itself, for allocation profiling */
+enum {
+	SITE_COPY, SITE_CONCAT, SITE_SUBSTR, SITE_IN_STRING, RUNTIME_SITES
+};
+
+static void *allocate(size_t size, int site, const cool_class *cls);
+
+static char out_buffer[OUT_BUFFER_SIZE];
+static size_t out_length = 0;
+
+static char in_buffer[IN_BUFFER_SIZE];
+static size_t in_start = 0;
+static size_t in_end = 0;
+
+/* The last line read, NUL-terminated; grown as needed */
+static char *line = NULL;
+static size_t line_capacity = 0;
+
+static void out_flush(void)
+{
+	if (out_length > 0) {
+		fwrite(out_buffer, 1, out_length, stdout);
+		out_length = 0;
+	}
+	fflush(stdout);
+}
+
+static void out_write(const char *chars, size_t length)
+{
+	if (length > OUT_BUFFER_SIZE - out_length) {
+		out_flush();
+		if (length > OUT_BUFFER_SIZE) {
+			fwrite(chars, 1, length, stdout);
+			return;
+		}
+	}
+	memcpy(out_buffer + out_length, chars, length);
+	out_length += length;
+}
+
+void cool_runtime_init(void)
+{
+	atexit(out_flush);
+}
+
+void cool_fatal(const char *message)
+{
+	out_flush();
+	fprintf(stderr, "%s\n", message);
+	exit(1);
+}
+
+/*
+ * Reads the next input line into line, without its newline, and returns
+ * its length, or -1 at end of input.
+ */
+static long read_line(void)
+{
+	size_t length = 0;
+	int any = 0;
+	out_flush();
+	for (;;) {
+		const char *start;
+		const char *newline;
+		size_t chunk;
+		if (in_start == in_end) {
+			const ssize_t n = read(0, in_buffer, IN_BUFFER_SIZE);
+			in_start = 0;
+			in_end = n > 0 ? (size_t) n : 0;
+			if (in_end == 0) {
+				break;
+			}
+		}
+		any = 1;
+		start = in_buffer + in_start;
+		newline = memchr(start, '\n', in_end - in_start);
+		chunk = newline != NULL ? (size_t) (newline - start) : in_end - in_start;
+		if (length + chunk + 1 > line_capacity) {
+			line_capacity = 2 * (length + chunk + 1);
+			line = realloc(line, line_capacity);
+			if (line == NULL) {
+				cool_fatal("Out of memory reading input");
+			}
+		}
+		memcpy(line + length, start, chunk);
+		length += chunk;
+		in_start += chunk;
+		if (newline != NULL) {
+			++in_start;
+			break;
+		}
+	}
+	if (!any) {
+		return -1;
+	}
+	line[length] = '\0';
+	return (long) length;
+}
+
+/*
+ * A new string of the given length whose characters follow the header in
+ * the same allocation; the caller fills them in.
+ */
+static cool_string *new_string(const cool_class *string_class,
+		int32_t length, char **chars, int site)
+{
+	cool_string *s = allocate(sizeof(cool_string) + length + 1, site,
+			string_class);
+	*chars = (char *) (s + 1);
+	(*chars)[length] = '\0';
+	s->cls = string_class;
+	s->length = length;
+	s->chars = *chars;
+	return s;
+}
+
+/* Object */
+
+void cool_abort(const cool_object *self)
+{
+	const cool_string *name = self->cls->name;
+	out_flush();
+	fprintf(stderr, "Abort called from class %.*s\n", (int) name->length,
+			name->chars);
+	exit(1);
+}
+
+const cool_string *cool_type_name(const cool_object *self)
+{
+	return self->cls->name;
+}
+
+cool_object *cool_copy(const cool_object *self)
+{
+	const size_t size = (size_t) self->cls->size;
+	cool_object *copy = allocate(size, SITE_COPY, self->cls);
+	memcpy(copy, self, size);
+	return copy;
+}
+
+/* String */
+
+cool_string *cool_concat(const cool_string *self, const cool_string *s)
+{
+	char *chars;
+	cool_string *result;
+	if (s->length > INT32_MAX - self->length) {
+		cool_fatal("String too long in concat");
+	}
+	result = new_string(self->cls, self->length + s->length, &chars,
+			SITE_CONCAT);
+	memcpy(chars, self->chars, self->length);
+	memcpy(chars + self->length, s->chars, s->length);
+	return result;
+}
+
+cool_string *cool_substr(const cool_string *self, int32_t i, int32_t l)
+{
+	cool_string *result;
+	if (i < 0 || l < 0 || i > self->length - l) {
+		cool_fatal("Index out of range in substr");
+	}
+	result = allocate(sizeof(cool_string), SITE_SUBSTR, self->cls);
+	result->cls = self->cls;
+	result->length = l;
+	result->chars = self->chars + i;
+	return result;
+}
+
+/* IO */
+
+void cool_out_string(const cool_string *s)
+{
+	out_write(s->chars, (size_t) s->length);
+}
+
+void cool_out_int(int32_t value)
+{
+	char digits[11];
+	char *p = digits + sizeof digits;
+	uint32_t magnitude = value < 0 ? -(uint32_t) value : (uint32_t) value;
+	do {
+		*--p = (char) ('0' + magnitude % 10);
+		magnitude /= 10;
+	} while (magnitude != 0);
+	if (value < 0) {
+		*--p = '-';
+	}
+	out_write(p, (size_t) (digits + sizeof digits - p));
+}
+
+/*
+ * Reads the next input line, without its newline. The string is empty at
+ * end of input or if the line contains a NUL.
+ */
+cool_string *cool_in_string(const cool_class *string_class)
+{
+	long length = read_line();
+	char *chars;
+	cool_string *result;
+	if (length < 0 || memchr(line, '\0', (size_t) length) != NULL) {
+		length = 0;
+	}
+	result = new_string(string_class, (int32_t) length, &chars,
+			SITE_IN_STRING);
+	if (length > 0) {
+		memcpy(chars, line, (size_t) length);
+	}
+	return result;
+}
+
+/*
+ * Reads an integer from the start of the next line and discards the rest
+ * of the line; 0 if there is none.
+ */
+int32_t cool_in_int(void)
+{
+	if (read_line() < 0) {
+		return 0;
+	}
+	return (int32_t) strtol(line, NULL, 10);
+}
+
+/*
+ * Profiling, for programs compiled with -profile. Every method function
+ * calls cool_profile_enter on entry and cool_profile_exit before it
+ * returns. Time is measured in processor ticks where a cheap cycle counter
+ * is available, and converted to seconds for the report by comparing the
+ * ticks and the wall-clock time elapsed over the whole run.
+ *
+ * Each active call has a frame holding its start and the time spent in its
+ * callees, which is excluded from its own time. A recursive method's total
+ * time is only counted for its outermost call, so that nested calls are
+ * not counted twice.
+ *
+ * Generated code also counts, in counters of its own, how often the
+ * condition of each if and while was true and false, and the receiver
+ * classes at each call through the vtable. After the report these and the
+ * call counts are written one per line, for -profile-use to read back.
+ */
+
+typedef struct profile_counter {
+	uint64_t calls;
+	uint64_t total;
+	uint64_t self;
+	uint32_t active;
+} profile_counter;
+
+typedef struct profile_frame {
+	int32_t method;
+	uint64_t start;
+	uint64_t callees;
+} profile_frame;
+
+static int32_t profile_methods = 0;
+static const char *const *profile_names = NULL;
+static int32_t profile_branch_sites = 0;
+static uint64_t (*const *profile_branches)[2] = NULL;
+static int32_t profile_dispatch_sites = 0;
+static uint64_t *const *profile_receivers = NULL;
+static int32_t profile_classes = 0;
+static const char *profile_file = NULL;
+static profile_counter *profile_counters = NULL;
+
+static profile_frame *profile_stack = NULL;
+static size_t profile_depth = 0;
+static size_t profile_capacity = 0;
+
+static uint64_t profile_start_ticks;
+static struct timespec profile_start_time;
+
+static uint64_t profile_ticks(void)
+{
+#if defined(__x86_64__) || defined(__i386__)
+	return __rdtsc();
+#else
+	struct timespec now;
+	clock_gettime(CLOCK_MONOTONIC, &now);
+	return (uint64_t) now.tv_sec * 1000000000u + (uint64_t) now.tv_nsec;
+#endif
+}
+
+void cool_profile_enter(int32_t method)
+{
+	profile_frame *frame;
+	if (profile_depth == profile_capacity) {
+		profile_capacity = profile_capacity > 0 ? 2 * profile_capacity : 1024;
+		profile_stack = realloc(profile_stack,
+				profile_capacity * sizeof(profile_frame));
+		if (profile_stack == NULL) {
+			cool_fatal("Out of memory profiling");
+		}
+	}
+	++profile_counters[method].calls;
+	++profile_counters[method].active;
+	frame = &profile_stack[profile_depth++];
+	frame->method = method;
+	frame->callees = 0;
+	frame->start = profile_ticks();
+}
+
+static void profile_exit_at(uint64_t now)
+{
+	const profile_frame *frame = &profile_stack[--profile_depth];
+	profile_counter *counter = &profile_counters[frame->method];
+	const uint64_t elapsed = now - frame->start;
+	counter->self += elapsed - frame->callees;
+	if (--counter->active == 0) {
+		counter->total += elapsed;
+	}
+	if (profile_depth > 0) {
+		profile_stack[profile_depth - 1].callees += elapsed;
+	}
+}
+
+void cool_profile_exit(int32_t method)
+{
+	(void) method;
+	profile_exit_at(profile_ticks());
+}
+
+static int profile_compare(const void *a, const void *b)
+{
+	const profile_counter *ca = &profile_counters[*(const int32_t *) a];
+	const profile_counter *cb = &profile_counters[*(const int32_t *) b];
+	if (ca->self != cb->self) {
+		return ca->self < cb->self ? 1 : -1;
+	}
+	if (ca->calls != cb->calls) {
+		return ca->calls < cb->calls ? 1 : -1;
+	}
+	return *(const int32_t *) a - *(const int32_t *) b;
+}
+
+/*
+ * Writes the report, most expensive own time first. Calls still active
+ * (the program exited from inside them) are closed off at the time of
+ * exit.
+ */
+static void profile_report(void)
+{
+	const uint64_t end_ticks = profile_ticks();
+	struct timespec end_time;
+	double seconds;
+	double seconds_per_tick;
+	int32_t *order;
+	int32_t i;
+	FILE *out;
+	clock_gettime(CLOCK_MONOTONIC, &end_time);
+	while (profile_depth > 0) {
+		profile_exit_at(end_ticks);
+	}
+	seconds = (double) (end_time.tv_sec - profile_start_time.tv_sec)
+			+ (double) (end_time.tv_nsec - profile_start_time.tv_nsec) / 1e9;
+	seconds_per_tick = end_ticks > profile_start_ticks ? seconds
+			/ (double) (end_ticks - profile_start_ticks) : 0;
+
+	order = malloc(profile_methods * sizeof(int32_t));
+	out = fopen(profile_file, "w");
+	if (order == NULL || out == NULL) {
+		fprintf(stderr, "Cannot write profile to %s\n", profile_file);
+		free(order);
+		return;
+	}
+	for (i = 0; i < profile_methods; ++i) {
+		order[i] = i;
+	}
+	qsort(order, profile_methods, sizeof(int32_t), profile_compare);
+	fprintf(out, "# %.6f s elapsed\n", seconds);
+	fprintf(out, "# %12s %12s %12s %7s  %s\n", "calls", "total ms",
+			"self ms", "self %", "method");
+	for (i = 0; i < profile_methods; ++i) {
+		const profile_counter *counter = &profile_counters[order[i]];
+		const double self = counter->self * seconds_per_tick;
+		if (counter->calls == 0) {
+			break;
+		}
+		fprintf(out, "  %12llu %12.3f %12.3f %7.2f  %s\n",
+				(unsigned long long) counter->calls,
+				counter->total * seconds_per_tick * 1e3, self * 1e3,
+				seconds > 0 ? 100 * self / seconds : 0.0,
+				profile_names[order[i]]);
+	}
+
+	fprintf(out, "## profile data\n");
+	for (i = 0; i < profile_methods; ++i) {
+		fprintf(out, "method %llu %s\n",
+				(unsigned long long) profile_counters[i].calls,
+				profile_names[i]);
+	}
+	for (i = 0; i < profile_branch_sites; ++i) {
+		const uint64_t *counts = *profile_branches[i];
+		fprintf(out, "branch %d %llu %llu\n", (int) i,
+				(unsigned long long) counts[0],
+				(unsigned long long) counts[1]);
+	}
+	for (i = 0; i < profile_dispatch_sites; ++i) {
+		int32_t id;
+		for (id = 0; id < profile_classes; ++id) {
+			if (profile_receivers[i][id] > 0) {
+				fprintf(out, "receiver %d %d %llu\n", (int) i, (int) id,
+						(unsigned long long) profile_receivers[i][id]);
+			}
+		}
+	}
+	fclose(out);
+	free(order);
+}
+
+/*
+ * Called from main when profiling, after cool_runtime_init: the report is
+ * then written before the output buffer is flushed at exit. The branch and
+ * receiver counters belong to generated code.
+ */
+void cool_profile_init(int32_t methods, const char *const *names,
+		int32_t branch_sites, uint64_t (*const *branches)[2],
+		int32_t dispatch_sites, uint64_t *const *receivers, int32_t classes,
+		const char *file)
+{
+	profile_methods = methods;
+	profile_names = names;
+	profile_branch_sites = branch_sites;
+	profile_branches = branches;
+	profile_dispatch_sites = dispatch_sites;
+	profile_receivers = receivers;
+	profile_classes = classes;
+	profile_file = file;
+	profile_counters = calloc((size_t) methods, sizeof(profile_counter));
+	if (profile_counters == NULL) {
+		cool_fatal("Out of memory profiling");
+	}
+	clock_gettime(CLOCK_MONOTONIC, &profile_start_time);
+	profile_start_ticks = profile_ticks();
+	atexit(profile_report);
+}
+
+/*
+ * Allocation profiling, for programs compiled with -profile-alloc. Heap
+ * allocations in generated code go through cool_profile_alloc, which counts
+ * objects and bytes by allocation site and by class; the runtime's own
+ * allocations are counted under sites of their own after the generated
+ * ones.
+ *
+ * The census of live objects walks the objects the collector found
+ * reachable in a full collection and counts them by the class pointer in
+ * their first word, checked against the class descriptors seen allocated.
+ * A census is taken at exit, and at the next allocation after SIGUSR1; each
+ * is appended to the report file.
+ */
+
+typedef struct alloc_counter {
+	uint64_t objects;
+	uint64_t bytes;
+} alloc_counter;
+
+static const char *const runtime_site_names[RUNTIME_SITES] = {
+	"Object.copy: copy", "String.concat: new String",
+	"String.substr: new String", "IO.in_string: new String"
+};
+
+static int32_t alloc_sites = 0;
+static const char *const *alloc_site_names = NULL;
+static int32_t alloc_classes = 0;
+static const char *alloc_file = NULL;
+static alloc_counter *alloc_by_site = NULL;
+static alloc_counter *alloc_by_class = NULL;
+
+/* Descriptor of each class ID, once an instance has been allocated */
+static const cool_class **alloc_class_seen = NULL;
+
+static alloc_counter *live_by_class = NULL;
+static const cool_class **census_classes = NULL;
+static size_t census_known = 0;
+static int census_number = 0;
+static volatile sig_atomic_t census_requested = 0;
+
+static void count_allocation(size_t size, int32_t site,
+		const cool_class *cls)
+{
+	++alloc_by_site[site].objects;
+	alloc_by_site[site].bytes += size;
+	++alloc_by_class[cls->id].objects;
+	alloc_by_class[cls->id].bytes += size;
+	alloc_class_seen[cls->id] = cls;
+}
+
+static void census(const char *when);
+
+static void *allocate(size_t size, int site, const cool_class *cls)
+{
+	if (alloc_by_site != NULL) {
+		count_allocation(size, alloc_sites + site, cls);
+	}
+	return GC_malloc(size);
+}
+
+void *cool_profile_alloc(int64_t size, int32_t site, const cool_class *cls)
+{
+	if (census_requested) {
+		census_requested = 0;
+		census("on signal");
+	}
+	count_allocation((size_t) size, site, cls);
+	return GC_malloc((size_t) size);
+}
+
+static void census_signal(int signal)
+{
+	(void) signal;
+	census_requested = 1;
+}
+
+static int compare_pointers(const void *a, const void *b)
+{
+	const uintptr_t pa = (uintptr_t) *(const cool_class *const *) a;
+	const uintptr_t pb = (uintptr_t) *(const cool_class *const *) b;
+	return pa < pb ? -1 : pa > pb;
+}
+
+static void census_object(void *object, size_t bytes, void *data)
+{
+	const cool_class *cls;
+	(void) data;
+	if (bytes < sizeof(cool_object)) {
+		return;
+	}
+	cls = ((const cool_object *) object)->cls;
+	if (bsearch(&cls, census_classes, census_known, sizeof(cool_class *),
+			compare_pointers) != NULL) {
+		++live_by_class[cls->id].objects;
+		live_by_class[cls->id].bytes += bytes;
+	}
+}
+
+static void *census_locked(void *data)
+{
+	GC_enumerate_reachable_objects_inner(census_object, data);
+	return NULL;
+}
+
+static void write_counters(FILE *out, const char *title,
+		const alloc_counter *counters, int32_t count, int by_class)
+{
+	int32_t *order = malloc((size_t) count * sizeof(int32_t));
+	int32_t n = 0;
+	int32_t i;
+	if (order == NULL) {
+		return;
+	}
+	for (i = 0; i < count; ++i) {
+		if (counters[i].objects > 0) {
+			int32_t j = n++;
+			while (j > 0 && counters[order[j - 1]].bytes < counters[i].bytes) {
+				order[j] = order[j - 1];
+				--j;
+			}
+			order[j] = i;
+		}
+	}
+	fprintf(out, "# %s\n# %12s %14s  %s\n", title, "objects", "bytes",
+			by_class ? "class" : "site");
+	for (i = 0; i < n; ++i) {
+		const alloc_counter *c = &counters[order[i]];
+		fprintf(out, "  %12llu %14llu  ", (unsigned long long) c->objects,
+				(unsigned long long) c->bytes);
+		if (by_class) {
+			const cool_string *name = alloc_class_seen[order[i]]->name;
+			fprintf(out, "%.*s\n", (int) name->length, name->chars);
+		} else if (order[i] < alloc_sites) {
+			fprintf(out, "%s\n", alloc_site_names[order[i]]);
+		} else {
+			fprintf(out, "%s\n", runtime_site_names[order[i] - alloc_sites]);
+		}
+	}
+	free(order);
+}
+
+/*
+ * Counts the live objects by class after a full collection, and appends
+ * them to the report together with the allocation counts so far.
+ */
+static void census(const char *when)
+{
+	FILE *out = fopen(alloc_file, "a");
+	int32_t id;
+	if (out == NULL) {
+		fprintf(stderr, "Cannot write allocation profile to %s\n", alloc_file);
+		return;
+	}
+	census_known = 0;
+	for (id = 0; id < alloc_classes; ++id) {
+		live_by_class[id].objects = 0;
+		live_by_class[id].bytes = 0;
+		if (alloc_class_seen[id] != NULL) {
+			census_classes[census_known++] = alloc_class_seen[id];
+		}
+	}
+	qsort(census_classes, census_known, sizeof(cool_class *),
+			compare_pointers);
+	GC_gcollect();
+	GC_call_with_alloc_lock(census_locked, NULL);
+
+	fprintf(out, "## census %d, %s\n", ++census_number, when);
+	write_counters(out, "allocated by site", alloc_by_site,
+			alloc_sites + RUNTIME_SITES, 0);
+	write_counters(out, "allocated by class", alloc_by_class, alloc_classes,
+			1);
+	write_counters(out, "live by class", live_by_class, alloc_classes, 1);
+	fclose(out);
+}
+
+static void census_at_exit(void)
+{
+	census("at exit");
+}
+
+/*
+ * Called from main when profiling allocations, with the names of the
+ * allocation sites in generated code and the number of classes.
+ */
+void cool_profile_alloc_init(int32_t sites, const char *const *names,
+		int32_t classes, const char *file)
+{
+	struct sigaction action;
+	FILE *out;
+	alloc_sites = sites;
+	alloc_site_names = names;
+	alloc_classes = classes;
+	alloc_file = file;
+	alloc_by_site = calloc((size_t) sites + RUNTIME_SITES,
+			sizeof(alloc_counter));
+	alloc_by_class = calloc((size_t) classes, sizeof(alloc_counter));
+	live_by_class = calloc((size_t) classes, sizeof(alloc_counter));
+	alloc_class_seen = calloc((size_t) classes, sizeof(cool_class *));
+	census_classes = calloc((size_t) classes, sizeof(cool_class *));
+	if (alloc_by_site == NULL || alloc_by_class == NULL
+			|| live_by_class == NULL || alloc_class_seen == NULL
+			|| census_classes == NULL) {
+		cool_fatal("Out of memory profiling");
+	}
+	out = fopen(file, "w");
+	if (out != NULL) {
+		fclose(out);
+	}
+	memset(&action, 0, sizeof action);
+	action.sa_handler = census_signal;
+	sigemptyset(&action.sa_mask);
+	action.sa_flags = SA_RESTART;
+	sigaction(SIGUSR1, &action, NULL);
+	atexit(census_at_exit);
+}